@@ -3,20 +3,21 @@
  */
 package eu.socie.mongo_async_persistor;
 
+import java.util.Map;
+import java.util.function.Consumer;
+
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 import com.allanbank.mongodb.MongoCollection;
 import com.allanbank.mongodb.MongoDatabase;
-import com.allanbank.mongodb.MongoIterator;
-import com.allanbank.mongodb.bson.Document;
-import com.allanbank.mongodb.bson.json.Json;
 import com.allanbank.mongodb.builder.Aggregate;
 import com.allanbank.mongodb.builder.Aggregate.Builder;
 
-import edu.umd.cs.findbugs.annotations.NonNull;
-import eu.socie.mongo_async_persistor.util.MongoUtil;
+import eu.socie.mongo_async_persistor.InFlightRequests.Flight;
+import eu.socie.mongo_async_persistor.util.FieldSchema;
+import eu.socie.mongo_async_persistor.util.MongoBsonEncoder;
 
 
 
@@ -27,49 +28,203 @@ import eu.socie.mongo_async_persistor.util.MongoUtil;
  */
 public class Aggregation {
 
+	public static final String FIELD_PIPELINE = "pipeline";
+	public static final String FIELD_ALLOW_DISK_USE = "allow_disk_use";
+	
+	public static final String ERROR_STAGE_MSG = "Invalid aggregation stage %s";
 	
 	private MongoDatabase mongodb;
+	private Map<String, FieldSchema> schemas;
+	private InFlightRequests inFlight;
+	private Rollups rollups;
+	private Consumer<String> onWrite;
 	
-	public Aggregation(MongoDatabase mongodb) {
+	/**
+	 * @param onWrite
+	 *            is called with the collection an aggregation wrote to with
+	 *            $out
+	 */
+	public Aggregation(MongoDatabase mongodb, Map<String, FieldSchema> schemas,
+			InFlightRequests inFlight, Rollups rollups,
+			Consumer<String> onWrite) {
 		this.mongodb = mongodb;
+		this.schemas = schemas;
+		this.inFlight = inFlight;
+		this.rollups = rollups;
+		this.onWrite = onWrite;
 	}
 	
 
+	/**
+	 * Run an aggregation on a collection. The query should be of the
+	 * following form
+	 * 
+	 * <pre>
+	 * { 
+	 * 		"collection" : "<i>name_of_collection</i>",
+	 * 		"pipeline" : [ { "$match" : {..} }, { "$group" : {..} }, { "$limit" : 10 } ],
+	 * 		"allow_disk_use" : false
+	 * }
+	 * </pre>
+	 * 
+	 * The stages are run in the given order. Instead of a pipeline a single
+	 * "group" document can be given, which is run as the only stage. The
+	 * results are collected without blocking and replied at once. A request
+	 * with a "rollup" name is served from a materialized rollup instead.
+	 * The collection of a { "$out" : "<i>name</i>" } stage is invalidated
+	 * once the aggregation has completed.
+	 * 
+	 * @see Rollups
+	 * 
+	 * @param aggregationMessage
+	 *            contains the collection and the pipeline
+	 */
 	public void aggregate(Message<JsonObject> aggregationMessage) {
 		JsonObject aggregationQuery = aggregationMessage.body();
+
+		if (aggregationQuery.containsField(Rollups.FIELD_ROLLUP)) {
+			rollups.serve(aggregationMessage);
+			return;
+		}
+
 		String collectionName = aggregationQuery.getString("collection");
 
+		if (collectionName == null) {
+			aggregationMessage.fail(
+					AsyncMongoPersistor.ERROR_COLLECTION_NAME_CODE,
+					AsyncMongoPersistor.ERROR_COLLECTION_NAME_MSG);
+			return;
+		}
+
 		// TODO what if collection doesn't exist?
 		MongoCollection collection = mongodb.getCollection(collectionName);
 		
+		JsonArray pipeline = aggregationQuery.getArray(FIELD_PIPELINE);
 		JsonObject group = aggregationQuery.getObject("group");
 		
-		if (group == null) {
-			// FIXME reply error
+		if (pipeline == null && group == null) {
+			aggregationMessage.fail(
+					AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_CODE,
+					AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_MSG);
+			return;
 		}
 		
-		//String findStr = MongoJsonEncoder.encode(find);
+		Aggregate agg;
+		try {
+			agg = createAggregation(aggregationQuery,
+					schemas.get(collectionName));
+		} catch (IllegalArgumentException e) {
+			aggregationMessage.fail(AsyncMongoPersistor.ERROR_QUERY_CODE,
+					e.getMessage());
+			return;
+		}
 		
-		Document groupDoc = Json.parse(group.toString());
+		String requestKey = QueryCache.requestKey(
+				AsyncMongoPersistor.EVENT_DB_AGGREGATE, collectionName,
+				aggregationQuery, FIELD_PIPELINE, "group",
+				FIELD_ALLOW_DISK_USE, AsyncMongoPersistor.QUERY_REPLY_FORMAT);
 		
-		Aggregate agg = createAggregation(groupDoc);
+		Flight flight = inFlight.join(requestKey, collectionName, aggregationMessage);
+		if (flight == null) {
+			// An identical aggregation is in flight and will reply this message
+			return;
+		}
 		
-		MongoIterator<Document> it = collection.aggregate(agg);
+		String replyFormat = aggregationQuery.getString(
+				AsyncMongoPersistor.QUERY_REPLY_FORMAT,
+				AsyncMongoPersistor.REPLY_FORMAT_JSON);
+		String out = getOut(pipeline);
 		
-		aggregationMessage.reply(convertResults(it));
+		// Streamed, so neither the event loop nor the driver waits for the
+		// next batch of results
+		collection.stream(new ResultCollector((error, results) -> {
+			if (error != null) {
+				inFlight.fail(requestKey, flight, -1, error.getMessage());
+			} else {
+				if (out != null) {
+					onWrite.accept(out);
+				}
+
+				inFlight.reply(requestKey, flight, AsyncMongoPersistor
+						.createFindReply(results, replyFormat));
+			}
+		}), agg);
 	}
 	
-	private JsonArray convertResults(MongoIterator<Document> it) {
-		JsonArray results = new JsonArray();
+	/**
+	 * Build the aggregation of a query
+	 * 
+	 * @param aggregationQuery
+	 *            contains the pipeline or group and the options
+	 * @param schema
+	 *            is the schema of the collection, may be null
+	 * @return the aggregation
+	 * @throws IllegalArgumentException
+	 *             if a stage is not valid
+	 */
+	static Aggregate createAggregation(JsonObject aggregationQuery,
+			FieldSchema schema) {
+		Builder builder = Aggregate.builder();
 		
-		it.forEach((doc) -> results.add(MongoUtil.convertBsonToJson(doc)));
+		JsonArray pipeline = aggregationQuery.getArray(FIELD_PIPELINE);
+		if (pipeline != null) {
+			for (Object stage : pipeline) {
+				if (!(stage instanceof JsonObject)
+						|| ((JsonObject) stage).size() != 1) {
+					throw new IllegalArgumentException(String.format(
+							ERROR_STAGE_MSG, stage));
+				}
+				
+				addStage(builder, (JsonObject) stage, schema);
+			}
+		} else {
+			builder.group(MongoBsonEncoder.encode(
+					aggregationQuery.getObject("group"), schema));
+		}
+		
+		if (aggregationQuery.getBoolean(FIELD_ALLOW_DISK_USE, false)) {
+			builder.allowDiskUsage(true);
+		}
 		
-		return results;
+		return builder.build();
 	}
 	
+	/**
+	 * @return the collection the pipeline writes to or null
+	 */
+	private static String getOut(JsonArray pipeline) {
+		if (pipeline != null) {
+			for (Object stage : pipeline) {
+				Object out = ((JsonObject) stage).getValue("$out");
+				
+				if (out instanceof String) {
+					return (String) out;
+				}
+			}
+		}
+		
+		return null;
+	}
 	
-	private Aggregate createAggregation(@NonNull Document groupDoc) {
-		Builder builder = Aggregate.builder().group(groupDoc);
-		return builder.build();
+	private static void addStage(Builder builder, JsonObject stage,
+			FieldSchema schema) {
+		String operator = stage.getFieldNames().iterator().next();
+		Object value = stage.getValue(operator);
+		
+		if (value instanceof JsonObject && !operator.equals("$out")) {
+			builder.step(operator, MongoBsonEncoder.encode((JsonObject) value,
+					schema));
+		} else if (value instanceof Number && operator.equals("$limit")) {
+			builder.limit(((Number) value).intValue());
+		} else if (value instanceof Number && operator.equals("$skip")) {
+			builder.skip(((Number) value).intValue());
+		} else if (value instanceof String && operator.equals("$unwind")) {
+			builder.unwind((String) value);
+		} else if (value instanceof String && operator.equals("$out")) {
+			builder.out((String) value);
+		} else {
+			throw new IllegalArgumentException(String.format(ERROR_STAGE_MSG,
+					stage.encode()));
+		}
 	}
 }
@@ -8,21 +8,19 @@ import static com.allanbank.mongodb.builder.Sort.asc;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
+import org.vertx.java.core.Context;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.streams.WriteStream;
 
+import com.allanbank.mongodb.LambdaCallback;
 import com.allanbank.mongodb.MongoCollection;
 import com.allanbank.mongodb.MongoDatabase;
-import com.allanbank.mongodb.MongoIterator;
+import com.allanbank.mongodb.StreamCallback;
 import com.allanbank.mongodb.bson.Document;
 import com.allanbank.mongodb.bson.Element;
 import com.allanbank.mongodb.bson.NumericElement;
@@ -64,6 +62,8 @@ public class AsyncGridFs extends GridFs {
 
 	public static final String CONTENT_TYPE_FIELD = "contentType";
 
+	public static final int DEFAULT_WINDOW = 4;
+
 	static {
 		HEADER_LENGTH = FILEPATH_HEADER_LENGTH + CONTENT_TYPE_HEADER_LENGTH;
 	}
@@ -88,28 +88,205 @@ public class AsyncGridFs extends GridFs {
 			writeToStream((WriteStream<?>) sink, headerBuffer.getBytes());
 		}
 	}
-	
-	/*
-	 * Based on the driver code
+
+	/**
+	 * The chunks of a file that hold a byte range of its contents. Only the
+	 * first and last chunk of a range have to be trimmed, the chunks in
+	 * between are passed on as they are.
 	 */
-	protected void doRead(Document fileDoc, Object sink) throws IOException {
-		final Element id = fileDoc.get(ID_FIELD);
-		final String fileName = fileDoc.get(FILENAME_FIELD).getValueAsString();
-		final String contentType = fileDoc.get(CONTENT_TYPE_FIELD).getValueAsString();
+	private static class ChunkRange {
+
+		private final boolean partial;
+		private final long chunkSize;
+		private final long offset;
+		// The end of the range, exclusive, -1 if it is unknown
+		private final long end;
+		private final long firstChunk;
+		// The chunk after the range, -1 if it is unknown
+		private final long endChunk;
+
+		/**
+		 * @param fileDoc
+		 *            is the files document
+		 * @param offset
+		 *            is the first byte to read
+		 * @param length
+		 *            is the number of bytes to read, a negative length reads
+		 *            up to the end of the file
+		 * @throws IOException
+		 *             if the range cannot be read
+		 */
+		private ChunkRange(Document fileDoc, long offset, long length)
+				throws IOException {
+			final long fileLength = getLength(fileDoc);
+
+			partial = (0 < offset) || (0 <= length);
+			chunkSize = getChunkSize(fileDoc);
+
+			if (offset < 0) {
+				throw new IOException("Invalid offset '" + offset + "'.");
+			} else if (!partial) {
+				this.offset = 0;
+				end = fileLength;
+				firstChunk = 0;
+				endChunk = getNumberChunks(fileDoc);
+			} else if ((fileLength < 0) || (chunkSize <= 0)) {
+				throw new IOException(
+						"Cannot read a range of a file without length or chunk size.");
+			} else {
+				// A range past the end of the file is empty
+				this.offset = Math.min(offset, fileLength);
+				end = (length < 0) ? fileLength : this.offset
+						+ Math.min(length, fileLength - this.offset);
+				firstChunk = this.offset / chunkSize;
+				endChunk = (end == this.offset) ? firstChunk
+						: ((end - 1) / chunkSize) + 1;
+			}
+		}
+
+		/**
+		 * @return the number of bytes in the range, -1 if it is unknown
+		 */
+		private long size() {
+			return (end < 0) ? -1 : end - offset;
+		}
+
+		private boolean isEmpty() {
+			return endChunk == firstChunk;
+		}
+
+		/**
+		 * @return the part of chunk n that falls in the range
+		 */
+		private byte[] trim(long n, byte[] data) {
+			if (!partial) {
+				return data;
+			}
+
+			final long chunkStart = n * chunkSize;
+			final int from = (int) Math.min(data.length,
+					Math.max(0, offset - chunkStart));
+			final int to = (int) Math.max(from,
+					Math.min(data.length, end - chunkStart));
+
+			if ((from == 0) && (to == data.length)) {
+				return data;
+			}
+
+			return Arrays.copyOfRange(data, from, to);
+		}
+	}
+
+	/**
+	 * Streams the chunks of a file to the sink as the driver receives them and
+	 * checks that none are missing
+	 */
+	private class ChunkReader implements StreamCallback<Document> {
+
+		private final Object sink;
+		private final ChunkRange range;
+		private final LambdaCallback<Long> callback;
+
+		private long expectedChunk;
+		private long totalSize = 0;
+		private IOException error;
 
-		long length = -1;
+		private ChunkReader(Object sink, ChunkRange range,
+				LambdaCallback<Long> callback) {
+			this.sink = sink;
+			this.range = range;
+			this.callback = callback;
+			this.expectedChunk = range.firstChunk;
+		}
+
+		@Override
+		public void callback(Document chunk) {
+			if (error != null) {
+				return;
+			}
+
+			final NumericElement n = chunk.get(NumericElement.class,
+					CHUNK_NUMBER_FIELD);
+			final BinaryElement bytes = chunk.get(BinaryElement.class,
+					DATA_FIELD);
+
+			if (n == null) {
+				error = new IOException("Missing chunk number '"
+						+ (expectedChunk + 1) + "' of '" + range.endChunk
+						+ "'.");
+			} else if (n.getLongValue() != expectedChunk) {
+				error = new IOException("Skipped chunk '" + (expectedChunk + 1)
+						+ "', retreived '" + n.getLongValue() + "' of '"
+						+ range.endChunk + "'.");
+			} else if (bytes == null) {
+				error = new IOException("Missing bytes in chunk '"
+						+ (expectedChunk + 1) + "' of '" + range.endChunk
+						+ "'.");
+			} else {
+				final byte[] buffer = range.trim(expectedChunk,
+						bytes.getValue());
+
+				writeToSink(sink, buffer);
+
+				expectedChunk += 1;
+				totalSize += buffer.length;
+			}
+		}
+
+		@Override
+		public void done() {
+			if (error == null && (0 <= range.endChunk)
+					&& (expectedChunk < range.endChunk)) {
+				error = new IOException("Missing chunks after '"
+						+ expectedChunk + "' of '" + range.endChunk + "'.");
+			}
+			if (error == null && (0 <= range.size())
+					&& (totalSize != range.size())) {
+				error = new IOException("File size mismatch. Expected '"
+						+ range.size() + "' but only read '" + totalSize
+						+ "' bytes.");
+			}
+
+			if (error != null) {
+				callback.accept(error, null);
+			} else {
+				callback.accept(null, totalSize);
+			}
+		}
+
+		@Override
+		public void exception(Throwable thrown) {
+			callback.accept(thrown, null);
+		}
+	}
+
+	/**
+	 * @return the length of the file, -1 if it is unknown
+	 */
+	private static long getLength(Document fileDoc) {
 		final NumericElement lengthElement = fileDoc.get(NumericElement.class,
 				LENGTH_FIELD);
-		if (lengthElement != null) {
-			length = lengthElement.getLongValue();
-		}
 
-		long chunkSize = -1;
+		return lengthElement == null ? -1 : lengthElement.getLongValue();
+	}
+
+	/**
+	 * @return the size of the chunks of the file, -1 if it is unknown
+	 */
+	private static long getChunkSize(Document fileDoc) {
 		final NumericElement chunkSizeElement = fileDoc.get(
 				NumericElement.class, CHUNK_SIZE_FIELD);
-		if (chunkSizeElement != null) {
-			chunkSize = chunkSizeElement.getLongValue();
-		}
+
+		return chunkSizeElement == null ? -1 : chunkSizeElement
+				.getLongValue();
+	}
+
+	/**
+	 * @return the number of chunks of the file, -1 if it is unknown
+	 */
+	private static long getNumberChunks(Document fileDoc) {
+		long length = getLength(fileDoc);
+		long chunkSize = getChunkSize(fileDoc);
 
 		long numberChunks = -1;
 		if ((0 <= length) && (0 < chunkSize)) {
@@ -117,69 +294,221 @@ public class AsyncGridFs extends GridFs {
 					/ (double) chunkSize);
 		}
 
-		final Element queryElement = id.withName(FILES_ID_FIELD);
+		return numberChunks;
+	}
+
+	/**
+	 * @return a query for the chunks first up to and including last of a
+	 *         file, without an upper bound if last is negative
+	 */
+	private static Document createChunkQuery(Element filesId, long first,
+			long last) {
 		final DocumentBuilder queryDoc = BuilderFactory.start();
-		queryDoc.add(queryElement);
+		queryDoc.add(filesId);
 
-		final Find.Builder findBuilder = new Find.Builder(queryDoc.build());
-		findBuilder.setSort(asc(CHUNK_NUMBER_FIELD));
+		final DocumentBuilder range = queryDoc.push(CHUNK_NUMBER_FIELD);
+		range.addLong("$gte", first);
+		if (0 <= last) {
+			range.addLong("$lte", last);
+		}
 
-		// Small batch size since the docs are big and we can do parallel I/O.
-		findBuilder.setBatchSize(10);
+		return queryDoc.build();
+	}
 
-		long expectedChunk = 0;
-		long totalSize = 0;
-		final MongoIterator<Document> iter = myChunksCollection
-				.find(findBuilder.build());
-		try {
-			writeHeader(fileName, contentType, sink);
-			
-			for (final Document chunk : iter) {
+	/**
+	 * Pumps the chunks of a file to a WriteStream, a window of chunks at a
+	 * time. The next window is only queried when the stream can take it, so
+	 * at most one window of chunks is held in memory. The stream is written
+	 * on the context that started the read.
+	 */
+	private class ChunkPump {
+
+		private final Element filesId;
+		private final ChunkRange range;
+		private final WriteStream<?> stream;
+		private final Context context;
+		private final int window;
+		private final LambdaCallback<Long> callback;
+
+		private long next;
+		private long totalSize = 0;
+		private boolean draining = false;
+		private boolean done = false;
+		private Throwable failure;
+
+		private ChunkPump(Document fileDoc, ChunkRange range,
+				WriteStream<?> stream, Context context, int window,
+				LambdaCallback<Long> callback) {
+			this.filesId = fileDoc.get(ID_FIELD).withName(FILES_ID_FIELD);
+			this.range = range;
+			this.stream = stream;
+			this.context = context;
+			this.window = window;
+			this.callback = callback;
+			this.next = range.firstChunk;
+		}
+
+		/**
+		 * Start pumping, on the context of the stream
+		 */
+		private void start() {
+			// A stream that fails never drains, so the pump has to stop
+			stream.exceptionHandler(this::fail);
+			fetch();
+		}
+
+		private void fail(Throwable error) {
+			if (failure == null) {
+				failure = error;
+			}
+
+			if (draining) {
+				draining = false;
+				complete(failure, null);
+			}
+		}
+
+		private void fetch() {
+			draining = false;
+
+			if (failure != null) {
+				complete(failure, null);
+				return;
+			} else if ((0 <= range.endChunk) && (next >= range.endChunk)) {
+				finish();
+				return;
+			}
+
+			long last = next + window - 1;
+			if (0 <= range.endChunk) {
+				last = Math.min(last, range.endChunk - 1);
+			}
+
+			final Find.Builder findBuilder = new Find.Builder(
+					createChunkQuery(filesId, next, last));
+			findBuilder.setSort(asc(CHUNK_NUMBER_FIELD));
+			findBuilder.setBatchSize(window);
+
+			myChunksCollection.stream(new ResultCollector((error, chunks) -> {
+				context.runOnContext(v -> write(error, chunks));
+			}), findBuilder.build());
+		}
 
+		private void write(Throwable error, List<Document> chunks) {
+			if (error != null || failure != null) {
+				complete(error != null ? error : failure, null);
+				return;
+			}
+
+			for (final Document chunk : chunks) {
 				final NumericElement n = chunk.get(NumericElement.class,
 						CHUNK_NUMBER_FIELD);
 				final BinaryElement bytes = chunk.get(BinaryElement.class,
 						DATA_FIELD);
 
-				if (n == null) {
-					throw new IOException("Missing chunk number '"
-							+ (expectedChunk + 1) + "' of '" + numberChunks
-							+ "'.");
-				} else if (n.getLongValue() != expectedChunk) {
-					throw new IOException("Skipped chunk '"
-							+ (expectedChunk + 1) + "', retreived '"
-							+ n.getLongValue() + "' of '" + numberChunks + "'.");
-				} else if (bytes == null) {
-					throw new IOException("Missing bytes in chunk '"
-							+ (expectedChunk + 1) + "' of '" + numberChunks
-							+ "'.");
-				} else {
-					final byte[] buffer = bytes.getValue();
+				if (n == null || n.getLongValue() != next || bytes == null) {
+					complete(new IOException("Missing or skipped chunk '"
+							+ (next + 1) + "' of '" + range.endChunk + "'."),
+							null);
+					return;
+				}
 
-					if (sink instanceof Buffer) {
-						writeToBuffer((Buffer) sink, buffer);
-					} else if (sink instanceof WriteStream<?>) {
-						writeToStream((WriteStream<?>) sink, buffer);
-					} else {
-						throw new IOException(
-								"File contents can only be written to either a Buffer or Writestream");
-					}
+				final byte[] buffer = range.trim(next, bytes.getValue());
+				writeToStream(stream, buffer);
 
-					expectedChunk += 1;
-					totalSize += buffer.length;
-				}
+				next += 1;
+				totalSize += buffer.length;
+			}
+
+			if (chunks.size() < window) {
+				finish();
+			} else if (stream.writeQueueFull()) {
+				draining = true;
+				stream.drainHandler(v -> fetch());
+			} else {
+				fetch();
 			}
-		} finally {
-			iter.close();
 		}
 
-		if ((0 <= numberChunks) && (expectedChunk < numberChunks)) {
-			throw new IOException("Missing chunks after '" + expectedChunk
-					+ "' of '" + numberChunks + "'.");
+		private void finish() {
+			if (failure != null) {
+				complete(failure, null);
+			} else if ((0 <= range.endChunk) && (next < range.endChunk)) {
+				complete(new IOException("Missing chunks after '" + next
+						+ "' of '" + range.endChunk + "'."), null);
+			} else if ((0 <= range.size()) && (totalSize != range.size())) {
+				complete(new IOException("File size mismatch. Expected '"
+						+ range.size() + "' but only read '" + totalSize
+						+ "' bytes."), null);
+			} else {
+				complete(null, totalSize);
+			}
 		}
-		if ((0 <= length) && (totalSize != length)) {
-			throw new IOException("File size mismatch. Expected '" + length
-					+ "' but only read '" + totalSize + "' bytes.");
+
+		private void complete(Throwable error, Long read) {
+			if (!done) {
+				done = true;
+				callback.accept(error, read);
+			}
+		}
+	}
+
+	/*
+	 * Based on the driver code
+	 */
+	protected void doRead(Document fileDoc, Object sink,
+			LambdaCallback<Long> callback) {
+		doRead(fileDoc, sink, 0, -1, callback);
+	}
+
+	/*
+	 * Based on the driver code, only the chunks that hold the range are read
+	 */
+	protected void doRead(Document fileDoc, Object sink, long offset,
+			long length, LambdaCallback<Long> callback) {
+		final Element id = fileDoc.get(ID_FIELD);
+		final String fileName = fileDoc.get(FILENAME_FIELD).getValueAsString();
+		final String contentType = fileDoc.get(CONTENT_TYPE_FIELD).getValueAsString();
+
+		if (!(sink instanceof Buffer) && !(sink instanceof WriteStream<?>)) {
+			callback.accept(new IOException(
+					"File contents can only be written to either a Buffer or Writestream"),
+					null);
+			return;
+		}
+
+		final ChunkRange range;
+		try {
+			range = new ChunkRange(fileDoc, offset, length);
+		} catch (IOException e) {
+			callback.accept(e, null);
+			return;
+		}
+
+		writeHeader(fileName, contentType, sink);
+
+		if (range.isEmpty()) {
+			callback.accept(null, 0L);
+			return;
+		}
+
+		final Find.Builder findBuilder = new Find.Builder(createChunkQuery(
+				id.withName(FILES_ID_FIELD), range.firstChunk,
+				range.endChunk - 1));
+		findBuilder.setSort(asc(CHUNK_NUMBER_FIELD));
+
+		// Small batch size since the docs are big and we can do parallel I/O.
+		findBuilder.setBatchSize(10);
+
+		myChunksCollection.stream(new ChunkReader(sink, range, callback),
+				findBuilder.build());
+	}
+
+	private void writeToSink(Object sink, byte[] buffer) {
+		if (sink instanceof Buffer) {
+			writeToBuffer((Buffer) sink, buffer);
+		} else {
+			writeToStream((WriteStream<?>) sink, buffer);
 		}
 	}
 
@@ -192,26 +521,85 @@ public class AsyncGridFs extends GridFs {
 	}
 
 	/**
-	 * Read a file with ObjectId id and write the result to a write stream.
+	 * Read a byte range of a file with ObjectId id and write the result to a
+	 * write stream. The chunks are read a few at a time and only while the
+	 * write queue of the stream is not full, so large files can be pumped to
+	 * slow receivers. Only the chunks that hold the range are queried.
 	 * 
 	 * @param id
 	 *            is the ObjectId of the file to retrieve
 	 * @param stream
-	 *            is the destination stream where to write to. Could be used to
-	 *            pump data
-	 * @throws IOException
-	 *             will be thrown if no file was found using the id
+	 *            is the destination stream where to write to, e.g. an HTTP
+	 *            response or an {@link EventBusStream}. Its exception handler
+	 *            is replaced, a failing stream ends the read with its error.
+	 * @param context
+	 *            is the context the stream belongs to, it is written and the
+	 *            callback is called on this context
+	 * @param window
+	 *            is the maximum number of chunks held in memory
+	 * @param offset
+	 *            is the first byte of the file contents to read
+	 * @param length
+	 *            is the number of bytes to read, a negative length reads up to
+	 *            the end of the file
+	 * @param callback
+	 *            is called with the number of bytes read, or with a
+	 *            FileNotFoundException if no file was found using the id
 	 */
-	public void read(final ObjectId id, final WriteStream<?> stream)
-			throws IOException {
-		// TODO should be FindOneAsync??
-		final Document fileDoc = myFilesCollection.findOne(where(ID_FIELD)
-				.equals(id));
-		if (fileDoc == null) {
-			throw new FileNotFoundException(id.toString());
-		}
+	public void read(final ObjectId id, final WriteStream<?> stream,
+			final Context context, final int window, final long offset,
+			final long length, final LambdaCallback<Long> callback) {
+		final LambdaCallback<Long> onContext = (error, read) -> context
+				.runOnContext(v -> callback.accept(error, read));
+
+		myFilesCollection.findOneAsync((error, fileDoc) -> {
+			if (error != null) {
+				onContext.accept(error, null);
+			} else if (fileDoc == null) {
+				onContext.accept(new FileNotFoundException(id.toString()), null);
+			} else {
+				final ChunkRange range;
+				try {
+					range = new ChunkRange(fileDoc, offset, length);
+				} catch (IOException e) {
+					onContext.accept(e, null);
+					return;
+				}
+
+				ChunkPump pump = new ChunkPump(fileDoc, range, stream, context,
+						Math.max(1, window), callback);
+
+				context.runOnContext(v -> {
+					writeHeader(fileDoc.get(FILENAME_FIELD).getValueAsString(),
+							fileDoc.get(CONTENT_TYPE_FIELD).getValueAsString(),
+							stream);
+					pump.start();
+				});
+			}
+		}, where(ID_FIELD).equals(id));
+	}
+
+	/**
+	 * Read a file with ObjectId id and write the result to a write stream
+	 * 
+	 * @see #read(ObjectId, WriteStream, Context, int, long, long,
+	 *      LambdaCallback)
+	 */
+	public void read(final ObjectId id, final WriteStream<?> stream,
+			final Context context, final int window,
+			final LambdaCallback<Long> callback) {
+		read(id, stream, context, window, 0, -1, callback);
+	}
 
-		doRead(fileDoc, stream);
+	/**
+	 * Read a file with ObjectId id and write the result to a write stream,
+	 * holding at most {@link #DEFAULT_WINDOW} chunks in memory
+	 * 
+	 * @see #read(ObjectId, WriteStream, Context, int, LambdaCallback)
+	 */
+	public void read(final ObjectId id, final WriteStream<?> stream,
+			final Context context, final LambdaCallback<Long> callback) {
+		read(id, stream, context, DEFAULT_WINDOW, callback);
 	}
 	
 	/**
@@ -219,12 +607,14 @@ public class AsyncGridFs extends GridFs {
 	 * 
 	 * @param id
 	 *            is the ObjectId of the file to retrieve
-	 * @return true if the file file object was found, false otherwise
+	 * @param callback
+	 *            is called with true if the file object was found, false
+	 *            otherwise
 	 */
-	public boolean find(final ObjectId id){
-		final Document fileDoc = myFilesCollection.findOne(where(ID_FIELD).equals(id));
-		if (fileDoc != null) return true;
-		return false;
+	public void find(final ObjectId id, final LambdaCallback<Boolean> callback) {
+		myFilesCollection.findOneAsync(
+				(error, fileDoc) -> callback.accept(error, error == null ? fileDoc != null : null),
+				where(ID_FIELD).equals(id));
 	}
 
 	/**
@@ -234,137 +624,420 @@ public class AsyncGridFs extends GridFs {
 	 *            is the ObjectId of the file to retrieve
 	 * @param buffer
 	 *            is the destination of the file contents
+	 * @param callback
+	 *            is called with the number of bytes read, or with an
+	 *            IOException if no file can be read
+	 */
+	public void read(final ObjectId id, final Buffer buffer,
+			final LambdaCallback<Long> callback) {
+		read(id, buffer, 0, -1, callback);
+	}
+
+	/**
+	 * Read a byte range of a file with ObjectId id and write the result to a
+	 * buffer. Only the chunks that hold the range are queried. A range that
+	 * starts past the end of the file is empty.
+	 * 
+	 * @param id
+	 *            is the ObjectId of the file to retrieve
+	 * @param buffer
+	 *            is the destination of the file contents
+	 * @param offset
+	 *            is the first byte of the file contents to read
+	 * @param length
+	 *            is the number of bytes to read, a negative length reads up to
+	 *            the end of the file
+	 * @param callback
+	 *            is called with the number of bytes read, or with an
+	 *            IOException if no file can be read
+	 */
+	public void read(final ObjectId id, final Buffer buffer,
+			final long offset, final long length,
+			final LambdaCallback<Long> callback) {
+		readAsync(id, buffer, offset, length, callback);
+	}
+
+	private void readAsync(final ObjectId id, final Object sink,
+			final long offset, final long length,
+			final LambdaCallback<Long> callback) {
+		myFilesCollection.findOneAsync((error, fileDoc) -> {
+			if (error != null) {
+				callback.accept(error, null);
+			} else if (fileDoc == null) {
+				callback.accept(new FileNotFoundException(id.toString()), null);
+			} else {
+				doRead(fileDoc, sink, offset, length, callback);
+			}
+		}, where(ID_FIELD).equals(id));
+	}
+
+	/**
+	 * Start an upload of a file that arrives in parts. The parts are cut into
+	 * chunks that are written as soon as they are full, so only the last,
+	 * incomplete chunk is held in memory. The MD5 of the file is computed
+	 * while the chunks are written and the files document is only inserted
+	 * on {@link Upload#commit(LambdaCallback)}, before that the file cannot
+	 * be read.
+	 * 
+	 * @param fileName
+	 *            is the name of the file
+	 * @param contentType
+	 *            is the content type of the file
+	 * @param expectedLength
+	 *            is the length of the file, a negative length if it is not
+	 *            known up front
+	 * @param context
+	 *            is the context the upload is used from, its callbacks are
+	 *            called on this context
+	 * @return the upload, the id of the upload is the id of the file
 	 * @throws IOException
-	 *             is thrown if no file can be read
+	 *             if no MD5 digest is available
 	 */
-	public void read(final ObjectId id, final Buffer buffer) throws IOException {
-		// TODO should be FindOneAsync??
-		final Document fileDoc = myFilesCollection.findOne(where(ID_FIELD)
-				.equals(id));
-		if (fileDoc == null) {
-			throw new FileNotFoundException(id.toString());
+	public Upload openUpload(final String fileName, final String contentType,
+			final long expectedLength, final Context context)
+			throws IOException {
+		try {
+			return new Upload(fileName, contentType, expectedLength, context,
+					MessageDigest.getInstance("MD5"));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IOException(e);
 		}
-
-		doRead(fileDoc, buffer);
 	}
 
-	public int readFromBuffer(byte[] target, Buffer buffer, int start) {
-		int bufferSize = buffer.length();
-		int size = target.length;
+	/**
+	 * A file that is uploaded in parts. Not thread safe, it has to be used
+	 * from the context that opened it.
+	 */
+	public class Upload {
 
-		if (start > bufferSize) {
-			return 0;
-		} else {
+		private final ObjectId id = new ObjectId();
+		private final String fileName;
+		private final String contentType;
+		private final long expectedLength;
+		private final Context context;
+		private final MessageDigest md5Digest;
+		private final int chunkSize;
 
-			int readEnd = start + size < bufferSize ? start + size : bufferSize;
+		// The bytes after the last full chunk
+		private Buffer tail = new Buffer();
+		private long length = 0;
+		private int n = 0;
 
-			if (readEnd <= bufferSize) {
-				byte[] b = buffer.getBytes(start, readEnd);
+		private int pending = 0;
+		private Runnable whenWritten;
+		private Throwable failure;
+		private boolean closed = false;
 
-				for (int i = 0; i < b.length; i++) {
-					target[i] = b[i];
-				}
+		private Upload(String fileName, String contentType,
+				long expectedLength, Context context, MessageDigest md5Digest) {
+			this.fileName = fileName;
+			this.contentType = contentType;
+			this.expectedLength = expectedLength;
+			this.context = context;
+			this.md5Digest = md5Digest;
+			this.chunkSize = getChunkSize();
+		}
 
-				return (readEnd - start);
-			}
+		/**
+		 * @return the id of the file
+		 */
+		public ObjectId getId() {
+			return id;
 		}
 
-		return 0;
-	}
+		/**
+		 * @return true once the upload has been committed or aborted
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
 
-	/**
-	 * The method will write a Vertx buffer to the Mongo GridFS system. The
-	 * first 178 bits of the buffer are reserved for the filename (128 bytes)
-	 * and content type (50 bytes) of the transferred file
-	 * 
-	 * @param fileBuffer
-	 *            contains the data of the file to be stored
-	 * @return the ObjectId of the stored file
-	 * @throws IOException
-	 *             will be thrown when the file store operation cannot succeed
-	 *             properly. Check the return message for more details.
-	 */
-	public ObjectId write(final Buffer fileBuffer) throws IOException {
-		final ObjectId id = new ObjectId();
+		/**
+		 * @return the number of bytes received so far
+		 */
+		public long getLength() {
+			return length;
+		}
 
-		boolean failed = false;
-		try {
-			final String filename = fileBuffer.getString(0,
-					FILEPATH_HEADER_LENGTH).trim();
-			final String contentType = fileBuffer.getString(
-					FILEPATH_HEADER_LENGTH,
-					FILEPATH_HEADER_LENGTH + CONTENT_TYPE_HEADER_LENGTH).trim();
-			final int fileLength = fileBuffer.length() - HEADER_LENGTH;
+		/**
+		 * Append a part of the file. A part that starts before the end of the
+		 * received bytes is a retry, only the bytes that were not received
+		 * yet are appended. A part after the end would leave a gap and is
+		 * refused.
+		 * 
+		 * @param data
+		 *            is the part of the file
+		 * @param offset
+		 *            is the position of the part in the file, a negative
+		 *            offset appends it at the end
+		 * @param callback
+		 *            is called with the number of bytes received once every
+		 *            full chunk of the part has been written, or with an
+		 *            IOException if the part is refused
+		 */
+		public void append(final Buffer data, final long offset,
+				final LambdaCallback<Long> callback) {
+			if (closed) {
+				callback.accept(new IOException("Upload " + id.toHexString()
+						+ " is closed."), null);
+				return;
+			} else if (failure != null) {
+				callback.accept(new IOException("Upload " + id.toHexString()
+						+ " failed.", failure), null);
+				return;
+			} else if (offset > length) {
+				callback.accept(new IOException("Expected offset '" + length
+						+ "' but got '" + offset + "'."), null);
+				return;
+			}
 
-			final byte[] buffer = new byte[DEFAULT_CHUNK_SIZE];
-			final MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+			final int skip = (int) Math.min(data.length(),
+					(offset < 0) ? 0 : length - offset);
+			final int size = data.length() - skip;
 
-			final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
-			final DocumentBuilder doc = BuilderFactory.start();
-			int n = 0;
-			int start = HEADER_LENGTH;
+			if ((0 <= expectedLength) && (length + size > expectedLength)) {
+				callback.accept(new IOException("Upload exceeds the expected length of '"
+						+ expectedLength + "' bytes."), null);
+				return;
+			}
 
-			int read = readFromBuffer(buffer, fileBuffer, start);
+			final int[] remaining = { 1 };
+			final Runnable written = () -> {
+				remaining[0] -= 1;
+				if (remaining[0] == 0) {
+					if (failure != null) {
+						callback.accept(failure, null);
+					} else {
+						callback.accept(null, length);
+					}
+				}
+			};
 
-			while (read > 0) {
+			int pos = skip;
+			while (pos < data.length()) {
+				final int take = Math.min(chunkSize - tail.length(),
+						data.length() - pos);
 
-				final ObjectId chunkId = new ObjectId();
+				if ((tail.length() == 0) && (take == chunkSize)) {
+					remaining[0] += 1;
+					writeChunk(readChunk(data, pos, take), written);
+				} else {
+					tail.appendBytes(data.getBytes(pos, pos + take));
 
-				doc.reset();
-				doc.addObjectId(ID_FIELD, chunkId);
-				doc.addObjectId(FILES_ID_FIELD, id);
-				doc.addInteger(CHUNK_NUMBER_FIELD, n);
+					if (tail.length() == chunkSize) {
+						remaining[0] += 1;
+						writeChunk(tail.getBytes(), written);
+						tail = new Buffer();
+					}
+				}
 
-				final byte[] data = (read == buffer.length) ? buffer : Arrays
-						.copyOf(buffer, read);
-				md5Digest.update(data);
-				doc.addBinary(DATA_FIELD, data);
+				pos += take;
+				length += take;
+			}
 
-				results.add(myChunksCollection.insertAsync(doc.build()));
+			written.run();
+		}
 
-				n++;
+		/**
+		 * Write the last chunk and insert the files document once all chunks
+		 * are written. When the upload failed its chunks are removed.
+		 * 
+		 * @param callback
+		 *            is called with the hex MD5 of the file, or with an
+		 *            IOException if the file is not complete
+		 */
+		public void commit(final LambdaCallback<String> callback) {
+			if (closed) {
+				callback.accept(new IOException("Upload " + id.toHexString()
+						+ " is closed."), null);
+				return;
+			} else if ((0 <= expectedLength) && (length != expectedLength)
+					&& (failure == null)) {
+				callback.accept(new IOException("File size mismatch. Expected '"
+						+ expectedLength + "' but only received '" + length
+						+ "' bytes."), null);
+				return;
+			}
 
-				read = readFromBuffer(buffer, fileBuffer, (start + n
-						* buffer.length));// readFully(source,
+			closed = true;
 
+			if (tail.length() > 0) {
+				writeChunk(tail.getBytes(), null);
+				tail = new Buffer();
 			}
 
-			doc.reset();
-			doc.addObjectId(ID_FIELD, id);
-			doc.addString(FILENAME_FIELD, filename);
-			doc.addString(CONTENT_TYPE_FIELD, contentType);
-			doc.addTimestamp(UPLOAD_DATE_FIELD, System.currentTimeMillis());
-			doc.addInteger(CHUNK_SIZE_FIELD, buffer.length);
-			doc.addLong(LENGTH_FIELD, fileLength);
-			doc.addString(MD5_FIELD, IOUtils.toHex(md5Digest.digest()));
+			whenWritten(() -> {
+				if (failure != null) {
+					deleteChunks((error, deleted) -> callback.accept(failure,
+							null));
+					return;
+				}
+
+				final String md5 = IOUtils.toHex(md5Digest.digest());
 
-			results.add(myFilesCollection.insertAsync(doc.build()));
+				final DocumentBuilder doc = BuilderFactory.start();
+				doc.addObjectId(ID_FIELD, id);
+				doc.addString(FILENAME_FIELD, fileName);
+				doc.addString(CONTENT_TYPE_FIELD, contentType);
+				doc.addTimestamp(UPLOAD_DATE_FIELD, System.currentTimeMillis());
+				doc.addInteger(CHUNK_SIZE_FIELD, chunkSize);
+				doc.addLong(LENGTH_FIELD, length);
+				doc.addString(MD5_FIELD, md5);
 
-			// Make sure everything made it to the server.
-			for (final Future<Integer> f : results) {
-				f.get();
+				myFilesCollection.insertAsync((error, inserted) -> context
+						.runOnContext(v -> {
+							if (error != null) {
+								deleteChunks((e, deleted) -> callback.accept(
+										error, null));
+							} else {
+								callback.accept(null, md5);
+							}
+						}), doc.build());
+			});
+		}
+
+		/**
+		 * Stop the upload and remove the chunks that were written
+		 * 
+		 * @param callback
+		 *            is called with the number of removed chunks
+		 */
+		public void abort(final LambdaCallback<Long> callback) {
+			if (closed) {
+				callback.accept(new IOException("Upload " + id.toHexString()
+						+ " is closed."), null);
+				return;
 			}
-		} catch (final NoSuchAlgorithmException e) {
-			failed = true;
-			throw new IOException(e);
-		} catch (final InterruptedException e) {
-			failed = true;
-			final InterruptedIOException error = new InterruptedIOException(
-					e.getMessage());
-			error.initCause(e);
-			throw error;
-		} catch (final ExecutionException e) {
-			failed = true;
-			throw new IOException(e.getCause());
-		} finally {
-			if (failed) {
-				myFilesCollection.delete(where(ID_FIELD).equals(id));
-				myChunksCollection.delete(where(FILES_ID_FIELD).equals(id));
+
+			closed = true;
+			tail = new Buffer();
+
+			// Chunks that are still being written would survive the delete
+			whenWritten(() -> deleteChunks(callback));
+		}
+
+		private void writeChunk(byte[] data, Runnable written) {
+			md5Digest.update(data);
+
+			final DocumentBuilder doc = BuilderFactory.start();
+			doc.addObjectId(ID_FIELD, new ObjectId());
+			doc.addObjectId(FILES_ID_FIELD, id);
+			doc.addInteger(CHUNK_NUMBER_FIELD, n);
+			doc.addBinary(DATA_FIELD, data);
+
+			n += 1;
+			pending += 1;
+
+			myChunksCollection.insertAsync((error, inserted) -> context
+					.runOnContext(v -> {
+						pending -= 1;
+						if (error != null && failure == null) {
+							failure = error;
+						}
+
+						if (written != null) {
+							written.run();
+						}
+
+						if (pending == 0 && whenWritten != null) {
+							Runnable next = whenWritten;
+							whenWritten = null;
+							next.run();
+						}
+					}), doc.build());
+		}
+
+		private void whenWritten(Runnable next) {
+			if (pending == 0) {
+				next.run();
+			} else {
+				whenWritten = next;
 			}
 		}
 
-		return id;
+		private void deleteChunks(LambdaCallback<Long> callback) {
+			myChunksCollection.deleteAsync((error, deleted) -> context
+					.runOnContext(v -> callback.accept(error, deleted)),
+					where(FILES_ID_FIELD).equals(id));
+		}
+	}
+
+	/**
+	 * Copy a chunk straight out of the Netty buffer behind a Buffer, the chunk
+	 * is the only copy of the bytes that is made
+	 * 
+	 * @param buffer
+	 *            is the buffer to read from
+	 * @param start
+	 *            is the position of the chunk in the buffer
+	 * @param chunkSize
+	 *            is the maximum size of the chunk
+	 * @return the bytes from start up to chunkSize bytes further or the end of
+	 *         the buffer, an empty array if start is at or past the end
+	 */
+	public static byte[] readChunk(Buffer buffer, int start, int chunkSize) {
+		final int size = Math.max(0,
+				Math.min(chunkSize, buffer.length() - start));
+		final byte[] chunk = new byte[size];
+
+		if (size > 0) {
+			buffer.getByteBuf().getBytes(start, chunk);
+		}
+
+		return chunk;
+	}
 
+	/**
+	 * The method will write a Vertx buffer to the Mongo GridFS system. The
+	 * first 178 bits of the buffer are reserved for the filename (128 bytes)
+	 * and content type (50 bytes) of the transferred file. The contents are
+	 * appended to an {@link Upload} without copying them first, so the
+	 * chunks are written without blocking and the chunks of a failed write
+	 * are removed.
+	 * 
+	 * @param fileBuffer
+	 *            contains the data of the file to be stored
+	 * @param context
+	 *            is the context the callback is called on
+	 * @param callback
+	 *            is called with the ObjectId of the stored file, or with an
+	 *            IOException when the file could not be stored
+	 */
+	public void write(final Buffer fileBuffer, final Context context,
+			final LambdaCallback<ObjectId> callback) {
+		if (fileBuffer.length() < HEADER_LENGTH) {
+			callback.accept(new IOException("The buffer contains no file header."),
+					null);
+			return;
+		}
+
+		final String filename = fileBuffer.getString(0, FILEPATH_HEADER_LENGTH)
+				.trim();
+		final String contentType = fileBuffer.getString(FILEPATH_HEADER_LENGTH,
+				FILEPATH_HEADER_LENGTH + CONTENT_TYPE_HEADER_LENGTH).trim();
+		final int fileLength = fileBuffer.length() - HEADER_LENGTH;
+
+		final Upload upload;
+		try {
+			upload = openUpload(filename, contentType, fileLength, context);
+		} catch (final IOException e) {
+			callback.accept(e, null);
+			return;
+		}
+
+		final Buffer contents = new Buffer(fileBuffer.getByteBuf().slice(
+				HEADER_LENGTH, fileLength));
+
+		upload.append(contents, 0, (error, received) -> {
+			if (error != null) {
+				upload.abort((abortError, deleted) -> callback.accept(error,
+						null));
+			} else {
+				upload.commit((commitError, md5) -> callback.accept(
+						commitError, (commitError == null) ? upload.getId()
+								: null));
+			}
+		});
 	}
 
 }
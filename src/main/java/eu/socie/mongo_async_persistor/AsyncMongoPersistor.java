@@ -18,8 +18,10 @@ package eu.socie.mongo_async_persistor;
  * @author Bram Wiekens
  */
 
-import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.vertx.java.core.VertxException;
 import org.vertx.java.core.buffer.Buffer;
@@ -30,23 +32,28 @@ import org.vertx.java.core.logging.Logger;
 import org.vertx.java.platform.Verticle;
 
 import com.allanbank.mongodb.Credential;
+import com.allanbank.mongodb.Durability;
 import com.allanbank.mongodb.MongoClient;
 import com.allanbank.mongodb.MongoClientConfiguration;
 import com.allanbank.mongodb.MongoCollection;
 import com.allanbank.mongodb.MongoDatabase;
 import com.allanbank.mongodb.MongoFactory;
-import com.allanbank.mongodb.MongoIterator;
+import com.allanbank.mongodb.ReadPreference;
 import com.allanbank.mongodb.bson.Document;
 import com.allanbank.mongodb.bson.DocumentAssignable;
+import com.allanbank.mongodb.bson.Element;
 import com.allanbank.mongodb.bson.builder.impl.DocumentBuilderImpl;
 import com.allanbank.mongodb.bson.element.ObjectId;
 import com.allanbank.mongodb.bson.element.ObjectIdElement;
-import com.allanbank.mongodb.bson.json.Json;
 import com.allanbank.mongodb.builder.Count;
 import com.allanbank.mongodb.builder.Find;
 import com.allanbank.mongodb.builder.Find.Builder;
+import com.allanbank.mongodb.builder.FindAndModify;
 
-import eu.socie.mongo_async_persistor.util.MongoJsonEncoder;
+import eu.socie.mongo_async_persistor.InFlightRequests.Flight;
+import eu.socie.mongo_async_persistor.util.FieldSchema;
+import eu.socie.mongo_async_persistor.util.MongoBsonEncoder;
+import eu.socie.mongo_async_persistor.util.MongoJsonWriter;
 import eu.socie.mongo_async_persistor.util.MongoUtil;
 
 /**
@@ -65,12 +72,26 @@ public class AsyncMongoPersistor extends Verticle {
 	public static final String CONFIG_USER = "user";
 	public static final String CONFIG_PASSWORD = "password";
 	public static final String CONFIG_CHUNCK_SIZE = "chuck_size";
+	public static final String CONFIG_SCHEMAS = "schemas";
+	public static final String CONFIG_CURSOR_TIMEOUT = "cursor_timeout";
+	public static final String CONFIG_MAX_CURSORS = "max_cursors";
+	public static final String CONFIG_UPLOAD_TIMEOUT = "upload_timeout";
+	public static final String CONFIG_MAX_UPLOADS = "max_uploads";
+	public static final String CONFIG_CACHE = "cache";
+	public static final String CONFIG_WRITE_BEHIND = "write_behind";
+	public static final String CONFIG_COALESCE_QUERIES = "coalesce_queries";
+	public static final String CONFIG_DEFAULT_BATCH_SIZE = "default_batch_size";
+	public static final String CONFIG_DEFAULT_MAX_TIME = "default_max_time";
+	public static final String CONFIG_DEFAULT_READ_PREFERENCE = "default_read_preference";
 
 	public static final String DEFAULT_HOST = "localhost";
 	public static final String DEFAULT_PORT = "27017";
 	public static final String DEFAULT_DATABASE = "test";
 
 	public static final String EVENT_DB_CREATE = "mongo.async.create";
+	public static final String EVENT_DB_CREATE_BATCH = "mongo.async.create_batch";
+	public static final String EVENT_DB_BULK = "mongo.async.bulk";
+	public static final String EVENT_DB_FIND_AND_MODIFY = "mongo.async.find_and_modify";
 	public static final String EVENT_DB_FIND = "mongo.async.find";
 	public static final String EVENT_DB_UPDATE = "mongo.async.update";
 	public static final String EVENT_DB_DELETE = "mongo.async.delete";
@@ -78,12 +99,70 @@ public class AsyncMongoPersistor extends Verticle {
 	public static final String EVENT_DB_GET_FILE = "mongo.async.get_file";
 	public static final String EVENT_DB_STORE_FILE = "mongo.async.store_file";
 	public static final String EVENT_DB_CHECK_FILE = "mongo.async.check_file";
+	public static final String EVENT_DB_UPLOAD_OPEN = "mongo.async.upload.open";
+	public static final String EVENT_DB_UPLOAD_APPEND = "mongo.async.upload.append";
+	public static final String EVENT_DB_UPLOAD_COMMIT = "mongo.async.upload.commit";
+	public static final String EVENT_DB_UPLOAD_ABORT = "mongo.async.upload.abort";
 
 	public static final String EVENT_DB_AGGREGATE = "mongo.async.aggregate";
+	public static final String EVENT_DB_ROLLUP = "mongo.async.rollup";
+	public static final String EVENT_DB_SCHEMA = "mongo.async.schema";
+
+	public static final String EVENT_DB_CURSOR_OPEN = "mongo.async.cursor.open";
+	public static final String EVENT_DB_CURSOR_NEXT = "mongo.async.cursor.next";
+	public static final String EVENT_DB_CURSOR_CLOSE = "mongo.async.cursor.close";
+	public static final String EVENT_DB_CACHE_STATS = "mongo.async.cache.stats";
+	public static final String EVENT_DB_WRITE_BEHIND_STATS = "mongo.async.write_behind.stats";
 
 	public static final String QUERY_LIMIT = "limit";
 	public static final String QUERY_SORT = "sort";
 	public static final String QUERY_SKIP = "skip";
+	public static final String QUERY_FIELDS = "fields";
+	public static final String QUERY_BATCH_SIZE = "batch_size";
+	public static final String QUERY_HINT = "hint";
+	public static final String QUERY_MAX_TIME = "max_time";
+	public static final String QUERY_READ_PREFERENCE = "read_preference";
+	public static final String QUERY_OPERATORS = "operators";
+	public static final String QUERY_MULTI = "multi";
+	public static final String QUERY_UPSERT = "upsert";
+	public static final String QUERY_REMOVE = "remove";
+	public static final String QUERY_NEW = "new";
+
+	public static final String QUERY_PAGINATION = "pagination";
+	public static final String QUERY_PAGE_SIZE = "page_size";
+	public static final String QUERY_AFTER = "after";
+	public static final String QUERY_NEXT = "next";
+
+	public static final String PAGINATION_KEYSET = "keyset";
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	// The query_result of a write that is not acknowledged by the server
+	public static final int UNACKNOWLEDGED_RESULT = -1;
+
+	public static final String READ_PRIMARY = "primary";
+	public static final String READ_PRIMARY_PREFERRED = "primary_preferred";
+	public static final String READ_SECONDARY = "secondary";
+	public static final String READ_SECONDARY_PREFERRED = "secondary_preferred";
+	public static final String READ_NEAREST = "nearest";
+	public static final String QUERY_REPLY_FORMAT = "reply_format";
+	public static final String QUERY_STREAM_ADDRESS = "stream_address";
+	public static final String QUERY_STREAM_BATCH_SIZE = "stream_batch_size";
+	public static final String QUERY_STREAM_BATCH_BYTES = "stream_batch_bytes";
+	public static final String QUERY_STREAM_TIMEOUT = "stream_timeout";
+	public static final String QUERY_WINDOW = "window";
+	public static final String QUERY_OFFSET = "offset";
+	public static final String QUERY_LENGTH = "length";
+
+	// The fields of a find request that change its result
+	private static final String[] FIND_KEY_FIELDS = { QUERY_SORT, QUERY_SKIP,
+			QUERY_LIMIT, QUERY_FIELDS, QUERY_REPLY_FORMAT };
+
+	public static final int DEFAULT_STREAM_BATCH_SIZE = 100;
+	public static final long DEFAULT_STREAM_BATCH_BYTES = 1024 * 1024;
+
+	public static final String REPLY_FORMAT_JSON = "json";
+	public static final String REPLY_FORMAT_STRING = "string";
+	public static final String REPLY_FORMAT_BUFFER = "buffer";
 
 	public static final int ERROR_COLLECTION_NAME_CODE = 1001;
 	public static final int ERROR_QUERY_CODE = 1002;
@@ -92,6 +171,7 @@ public class AsyncMongoPersistor extends Verticle {
 	public static final int ERROR_NO_FILE_FOR_ID_CODE = 1005;
 	public static final int ERROR_NO_ID_QUERY_CODE = 1006;
 	public static final int ERROR_STORING_FILE = 1007;
+	public static final int ERROR_SCHEMA_CODE = 1008;
 
 	// TODO consider localization
 	public static final String ERROR_COLLECTION_NAME_MSG = "No collection name in query";
@@ -99,11 +179,27 @@ public class AsyncMongoPersistor extends Verticle {
 	public static final String ERROR_WRONG_TYPE_MSG = "Wrong message type, should be JSON";
 	public static final String ERROR_NO_FILE_FOR_ID_MSG = "File with id %s could not be retrieved";
 	public static final String ERROR_NO_ID_QUERY_MSG = "The query contains no id";
+	public static final String ERROR_READ_PREFERENCE_MSG = "Unknown read preference %s";
+	public static final String ERROR_UPDATE_OPERATOR_MSG = "Field %s of the update is not an operator";
+	public static final String ERROR_RANGE_MSG = "Invalid byte range, offset %d and length %d";
 
+	private MongoClient mongoClient;
 	private MongoDatabase mongodb;
 	private AsyncGridFs gridFs;
+	private CursorRegistry cursors;
+	private QueryCache cache;
+	private InFlightRequests inFlight;
+	private WriteConcerns writeConcerns;
+	private WriteBehindBuffer writeBehind;
 	private Logger log;
 
+	private final Map<String, FieldSchema> schemas = new HashMap<String, FieldSchema>();
+
+	// Module wide query defaults, 0 or null leave the driver defaults
+	private int defaultBatchSize;
+	private long defaultMaxTime;
+	private ReadPreference defaultReadPreference;
+
 	public void start() {
 		log = container.logger();
 
@@ -111,8 +207,21 @@ public class AsyncMongoPersistor extends Verticle {
 
 		mongodb = connectToDatabase(modConfig);
 		gridFs = initGridFs(modConfig);
+		initSchemas(modConfig);
+		initQueryDefaults(modConfig);
+
+		writeConcerns = new WriteConcerns(modConfig);
+
+		inFlight = new InFlightRequests(modConfig.getBoolean(
+				CONFIG_COALESCE_QUERIES, true));
 
-		Aggregation ag = new Aggregation(mongodb);
+		Rollups rollups = new Rollups(vertx, mongodb, schemas,
+				this::invalidate, log);
+		vertx.eventBus().registerHandler(EVENT_DB_ROLLUP,
+				(Message<JsonObject> q) -> rollups.register(q));
+
+		Aggregation ag = new Aggregation(mongodb, schemas, inFlight, rollups,
+				this::invalidate);
 		vertx.eventBus().registerHandler(EVENT_DB_AGGREGATE,
 				(Message<JsonObject> q) -> ag.aggregate(q));
 
@@ -122,12 +231,32 @@ public class AsyncMongoPersistor extends Verticle {
 		vertx.eventBus().registerHandler(EVENT_DB_CREATE,
 				(Message<JsonObject> q) -> save(q));
 
+		JsonObject writeBehindConfig = modConfig.getObject(CONFIG_WRITE_BEHIND);
+		if (writeBehindConfig != null) {
+			writeBehind = new WriteBehindBuffer(vertx, mongodb, schemas,
+					writeConcerns, this::invalidate, writeBehindConfig);
+
+			vertx.eventBus().registerHandler(EVENT_DB_WRITE_BEHIND_STATS,
+					(Message<JsonObject> q) -> q.reply(writeBehind.stats()));
+		}
+
+		BatchWriter batchWriter = new BatchWriter(mongodb, schemas,
+				writeConcerns, this::invalidate);
+		vertx.eventBus().registerHandler(EVENT_DB_CREATE_BATCH,
+				(Message<JsonObject> q) -> batchWriter.insert(q));
+
+		vertx.eventBus().registerHandler(EVENT_DB_BULK,
+				(Message<JsonObject> q) -> batchWriter.bulk(q));
+
 		vertx.eventBus().registerHandler(EVENT_DB_DELETE,
 				(Message<JsonObject> q) -> delete(q));
 
 		vertx.eventBus().registerHandler(EVENT_DB_UPDATE,
 				(Message<JsonObject> q) -> update(q));
 
+		vertx.eventBus().registerHandler(EVENT_DB_FIND_AND_MODIFY,
+				(Message<JsonObject> q) -> findAndModify(q));
+
 		vertx.eventBus().registerHandler(EVENT_DB_GET_FILE,
 				(Message<JsonObject> q) -> getFile(q));
 
@@ -137,9 +266,51 @@ public class AsyncMongoPersistor extends Verticle {
 		vertx.eventBus().registerHandler(EVENT_DB_STORE_FILE,
 				(Message<Buffer> q) -> storeFile(q));
 
+		UploadSessions uploads = new UploadSessions(vertx, gridFs,
+				modConfig.getLong(CONFIG_UPLOAD_TIMEOUT,
+						UploadSessions.DEFAULT_TIMEOUT), modConfig.getInteger(
+						CONFIG_MAX_UPLOADS, UploadSessions.DEFAULT_MAX_UPLOADS));
+
+		vertx.eventBus().registerHandler(EVENT_DB_UPLOAD_OPEN,
+				(Message<JsonObject> q) -> uploads.open(q));
+
+		vertx.eventBus().registerHandler(EVENT_DB_UPLOAD_APPEND,
+				(Message<Buffer> q) -> uploads.append(q));
+
+		vertx.eventBus().registerHandler(EVENT_DB_UPLOAD_COMMIT,
+				(Message<JsonObject> q) -> uploads.commit(q));
+
+		vertx.eventBus().registerHandler(EVENT_DB_UPLOAD_ABORT,
+				(Message<JsonObject> q) -> uploads.abort(q));
+
 		vertx.eventBus().registerHandler(EVENT_DB_COUNT,
 				(Message<JsonObject> q) -> count(q));
 
+		vertx.eventBus().registerHandler(EVENT_DB_SCHEMA,
+				(Message<JsonObject> q) -> registerSchema(q));
+
+		cursors = new CursorRegistry(vertx, mongoClient, modConfig.getLong(
+				CONFIG_CURSOR_TIMEOUT, CursorRegistry.DEFAULT_TIMEOUT),
+				modConfig.getInteger(CONFIG_MAX_CURSORS,
+						CursorRegistry.DEFAULT_MAX_CURSORS));
+
+		vertx.eventBus().registerHandler(EVENT_DB_CURSOR_OPEN,
+				(Message<JsonObject> q) -> openCursor(q));
+
+		vertx.eventBus().registerHandler(EVENT_DB_CURSOR_NEXT,
+				(Message<JsonObject> q) -> cursors.next(q));
+
+		vertx.eventBus().registerHandler(EVENT_DB_CURSOR_CLOSE,
+				(Message<JsonObject> q) -> cursors.close(q));
+
+		JsonObject cacheConfig = modConfig.getObject(CONFIG_CACHE);
+		if (cacheConfig != null) {
+			cache = new QueryCache(cacheConfig);
+
+			vertx.eventBus().registerHandler(EVENT_DB_CACHE_STATS,
+					(Message<JsonObject> q) -> q.reply(cache.stats()));
+		}
+
 		log.info("Starting Mongo Async Persistor");
 	}
 
@@ -161,17 +332,32 @@ public class AsyncMongoPersistor extends Verticle {
 			id = fileQuery.getString("_id");
 		}
 
-		JsonObject found = new JsonObject();
+		final String fileId = id;
 
-		if (gridFs.find(new ObjectId(id))) {
-			found.putString("pdf_id", id);
-		}
-		fileMsg.reply(found);
+		gridFs.find(new ObjectId(id), (error, exists) -> {
+			if (error != null) {
+				castError(fileMsg, -1, error.getMessage());
+			} else {
+				JsonObject found = new JsonObject();
+
+				if (exists) {
+					found.putString("pdf_id", fileId);
+				}
+				fileMsg.reply(found);
+			}
+		});
 	}
 
 	/**
 	 * Retrieve a file on basis of its ObjectId. The contents of the file is
-	 * written back in a buffer to the even source
+	 * written back in a buffer to the even source, the file and its chunks
+	 * are read without blocking. With a <i>stream_address</i> the file is
+	 * streamed in chunks instead, see
+	 * {@link #streamFile(Message, ObjectId, String, long, long)}.
+	 * 
+	 * An <i>offset</i> and <i>length</i> read a byte range of the contents,
+	 * only the chunks that hold the range are read. The header is written
+	 * as usual. Without a length the file is read up to its end.
 	 * 
 	 * @param fileMsg
 	 *            is the query message that contains the id of the file to
@@ -190,40 +376,178 @@ public class AsyncMongoPersistor extends Verticle {
 				id = fileQuery.getString("_id");
 			}
 
-			Buffer buffer = new Buffer();
+			final String fileId = id;
 
-			gridFs.read(new ObjectId(id), buffer);
+			long offset = fileQuery.getLong(QUERY_OFFSET, 0);
+			long length = fileQuery.getLong(QUERY_LENGTH, -1);
+			if (offset < 0
+					|| (fileQuery.containsField(QUERY_LENGTH) && length < 0)) {
+				castError(fileMsg, ERROR_QUERY_CODE,
+						String.format(ERROR_RANGE_MSG, offset, length));
+				return;
+			}
 
-			fileMsg.reply(buffer);
+			String streamAddress = fileQuery.getString(QUERY_STREAM_ADDRESS);
+			if (streamAddress != null) {
+				streamFile(fileMsg, new ObjectId(id), streamAddress, offset,
+						length);
+				return;
+			}
 
-		} catch (IllegalArgumentException | IOException e) {
-			// FIXME remove
-			System.out.println(e.getMessage());
+			Buffer buffer = new Buffer();
 
+			gridFs.read(new ObjectId(id), buffer, offset, length,
+					(error, read) -> {
+						if (error != null) {
+							castError(fileMsg, ERROR_NO_FILE_FOR_ID_CODE,
+									String.format(ERROR_NO_FILE_FOR_ID_MSG, fileId));
+						} else {
+							fileMsg.reply(buffer);
+						}
+					});
+
+		} catch (IllegalArgumentException e) {
 			castError(fileMsg, ERROR_NO_FILE_FOR_ID_CODE,
 					String.format(ERROR_NO_FILE_FOR_ID_MSG, id));
 
 		}
 	}
 
+	/**
+	 * Stream a file to an event bus address instead of replying it in one
+	 * buffer. The header and every chunk are sent as a Buffer to the stream
+	 * address, and the receiver has to reply each of them. At most
+	 * <i>window</i> buffers wait for a reply. When all are replied the
+	 * get_file message is replied with the _id of the file and the number of
+	 * bytes streamed.
+	 * 
+	 * @see EventBusStream
+	 */
+	private void streamFile(Message<JsonObject> fileMsg, ObjectId id,
+			String streamAddress, long offset, long length) {
+		JsonObject fileQuery = fileMsg.body();
+
+		int window = fileQuery.getInteger(QUERY_WINDOW,
+				AsyncGridFs.DEFAULT_WINDOW);
+
+		EventBusStream stream = new EventBusStream(vertx.eventBus(),
+				streamAddress, fileQuery.getLong(QUERY_STREAM_TIMEOUT,
+						EventBusStream.DEFAULT_TIMEOUT));
+		stream.setWriteQueueMaxSize(window);
+
+		gridFs.read(id, stream, vertx.currentContext(), window, offset, length,
+				(error, read) -> {
+					if (stream.failed()) {
+						// A buffer was not replied in time
+						fileMsg.fail(ERROR_NO_FILE_FOR_ID_CODE,
+								error != null ? error.getMessage()
+										: "Stream to " + streamAddress
+												+ " failed");
+					} else if (error != null) {
+						castError(fileMsg, ERROR_NO_FILE_FOR_ID_CODE, String
+								.format(ERROR_NO_FILE_FOR_ID_MSG,
+										id.toHexString()));
+					} else {
+						// The last buffers can still fail while waiting for
+						// their replies
+						stream.exceptionHandler(e -> fileMsg.fail(
+								ERROR_NO_FILE_FOR_ID_CODE, e.getMessage()));
+						stream.end(v -> fileMsg.reply(new JsonObject()
+								.putString("_id", id.toHexString())
+								.putNumber("length", read)));
+					}
+				});
+	}
+
 	public void storeFile(Message<Buffer> fileMsg) {
 		Buffer buffer = fileMsg.body();
 
 		if (buffer != null) {
+			gridFs.write(buffer, vertx.currentContext(), (error, id) -> {
+				if (error != null) {
+					castError(fileMsg, ERROR_NO_FILE_FOR_ID_CODE,
+							error.getMessage());
+				} else {
+					fileMsg.reply(id.toHexString());
+				}
+			});
+		}
 
-			try {
-				ObjectId id = gridFs.write(buffer);
+		// FIXME error handling
+	}
+
+	/**
+	 * Register the field types of a collection, replacing an earlier schema.
+	 * An empty or missing fields object removes the schema, so values are
+	 * sniffed again. The message should be of the following form
+	 * 
+	 * <pre>
+	 * { 
+	 * 		"collection" : "<i>name_of_collection</i>",
+	 * 		"fields" :  { "*_id" : "object_id", "created" : "date" }
+	 * }
+	 * </pre>
+	 * 
+	 * Every instance of the persistor keeps its own schemas, so publish the
+	 * message when more than one instance is deployed.
+	 * 
+	 * @see FieldSchema
+	 * @param schemaMessage
+	 *            contains the collection and its field types
+	 */
+	public void registerSchema(Message<JsonObject> schemaMessage) {
+		JsonObject schemaQuery = schemaMessage.body();
+
+		String collectionName = schemaQuery.getString("collection");
 
-				fileMsg.reply(id.toHexString());
-			} catch (IOException e) {
-				castError(fileMsg, ERROR_NO_FILE_FOR_ID_CODE,
-						String.format(e.getMessage()));
+		if (collectionName == null)
+			castError(schemaMessage, ERROR_COLLECTION_NAME_CODE,
+					ERROR_COLLECTION_NAME_MSG);
+
+		JsonObject fields = schemaQuery.getObject("fields");
+
+		try {
+			if (fields == null || fields.size() == 0) {
+				schemas.remove(collectionName);
+			} else {
+				schemas.put(collectionName, FieldSchema.fromJson(fields));
 			}
+		} catch (IllegalArgumentException e) {
+			castError(schemaMessage, ERROR_SCHEMA_CODE, e.getMessage());
 		}
 
-		// FIXME error handling
+		// Queries of the collection are encoded differently from now on
+		invalidate(collectionName);
+
+		schemaMessage.reply(new JsonObject().putString("collection",
+				collectionName));
 	}
 
+	/**
+	 * Perform an asynchronous update on the database. The query should be of
+	 * the following form
+	 * 
+	 * <pre>
+	 * { 
+	 * 		"collection" : "<i>name_of_collection</i>",
+	 * 		"query" : { <i>selects the documents to update</i> },
+	 * 		"document" : { <i>fields to set</i> },
+	 * 		"operators" : false,
+	 * 		"multi" : false,
+	 * 		"upsert" : false
+	 * }
+	 * </pre>
+	 * 
+	 * By default the fields of the document are set with $set. When
+	 * <i>operators</i> is true the document is passed on as it is and should
+	 * only contain update operators, such as $inc, $push or $unset. The
+	 * <i>multi</i> and <i>upsert</i> flags act like those of MongoDB, both
+	 * default to false.
+	 * 
+	 * @see WriteConcerns
+	 * @param updateMessage
+	 *            is the update query message
+	 */
 	public void update(Message<JsonObject> updateMessage) {
 		if (updateMessage == null)
 			castError(updateMessage, ERROR_QUERY_DOCUMENT_CODE,
@@ -247,21 +571,36 @@ public class AsyncMongoPersistor extends Verticle {
 			castError(updateMessage, ERROR_QUERY_DOCUMENT_CODE,
 					ERROR_QUERY_DOCUMENT_MSG);
 
-		String queryStr = MongoJsonEncoder.encode(queryDoc);
-		Document query = Json.parse(queryStr);
+		FieldSchema schema = schemas.get(collectionName);
 
-		String updateStr = MongoJsonEncoder.encode(updateDoc);
-		Document doc = Json.parse(updateStr);
+		Document query = MongoBsonEncoder.encode(queryDoc, schema);
 
-		Document setDoc = new DocumentBuilderImpl().addDocument("$set", doc)
-				.build();
+		Document setDoc = null;
+		try {
+			setDoc = createUpdate(updateDoc,
+					updateQuery.getBoolean(QUERY_OPERATORS, false), schema);
+		} catch (IllegalArgumentException e) {
+			castError(updateMessage, ERROR_QUERY_CODE, e.getMessage());
+		}
+
+		boolean multi = updateQuery.getBoolean(QUERY_MULTI, false);
+		boolean upsert = updateQuery.getBoolean(QUERY_UPSERT, false);
 
 		MongoCollection collection = mongodb.getCollection(collectionName);
+		Durability durability = getDurability(updateMessage, collection);
+		boolean acknowledged = WriteConcerns.isAcknowledged(durability);
 
 		collection.updateAsync((error, results) -> {
-			if (error != null) {
+			if (!acknowledged) {
+				// A find between the reply and the write may have cached
+				// the old documents
+				invalidate(collectionName);
+				logUnacknowledged(collectionName, error);
+			} else if (error != null) {
 				castError(updateMessage, -1, error.getMessage());
 			} else {
+				invalidate(collectionName);
+
 				JsonObject obj = new JsonObject();
 
 				obj.putNumber("query_result", results);
@@ -269,7 +608,14 @@ public class AsyncMongoPersistor extends Verticle {
 				updateMessage.reply(obj);
 			}
 
-		}, query, setDoc);
+		}, query, setDoc, multi, upsert, durability);
+
+		if (!acknowledged) {
+			invalidate(collectionName);
+
+			updateMessage.reply(new JsonObject().putNumber("query_result",
+					UNACKNOWLEDGED_RESULT));
+		}
 
 	}
 
@@ -285,6 +631,13 @@ public class AsyncMongoPersistor extends Verticle {
 	 * }
 	 * </pre>
 	 * 
+	 * With write_behind in the module config the save is buffered and written
+	 * together with other saves of the collection. A <i>write_concern</i> can
+	 * be set, an unacknowledged save is replied with query_result -1 right
+	 * away.
+	 * 
+	 * @see WriteBehindBuffer
+	 * @see WriteConcerns
 	 * @see <a href="http://docs.mongodb.org/manual/core/write-concern/">MongoDB
 	 *      write concerns</a>
 	 * @param saveMessage
@@ -308,17 +661,39 @@ public class AsyncMongoPersistor extends Verticle {
 			castError(saveMessage, ERROR_QUERY_DOCUMENT_CODE,
 					ERROR_QUERY_DOCUMENT_MSG);
 
-		String createStr = MongoJsonEncoder.encode(saveDoc);
-		Document doc = Json.parse(createStr);
+		if (writeBehind != null) {
+			writeBehind.save(collectionName, saveDoc, saveMessage);
+			return;
+		}
+
+		Document encoded = MongoBsonEncoder.encode(saveDoc,
+				schemas.get(collectionName));
+
+		// The id is assigned here, so it is known without waiting for the
+		// server
+		Document doc = encoded.get("_id") == null ? BatchWriter.withId(
+				encoded, new ObjectId()) : encoded;
+
+		// An _id of the client may be a string or a number as well
+		Element id = doc.get("_id");
+		String idStr = id instanceof ObjectIdElement ? ((ObjectIdElement) id)
+				.getId().toHexString() : id.getValueAsString();
 
 		MongoCollection collection = mongodb.getCollection(collectionName);
+		Durability durability = getDurability(saveMessage, collection);
+		boolean acknowledged = WriteConcerns.isAcknowledged(durability);
 
 		collection.saveAsync((error, results) -> {
-			if (error != null) {
+			if (!acknowledged) {
+				// A find between the reply and the write may have cached
+				// the old documents
+				invalidate(collectionName);
+				logUnacknowledged(collectionName, error);
+			} else if (error != null) {
 				castError(saveMessage, -1, error.getMessage());
 			} else {
-				ObjectIdElement id = (ObjectIdElement) doc.get("_id");
-				String idStr = id.getId().toHexString();
+				invalidate(collectionName);
+
 				JsonObject obj = new JsonObject();
 
 				obj.putNumber("query_result", results);
@@ -327,7 +702,104 @@ public class AsyncMongoPersistor extends Verticle {
 				saveMessage.reply(obj);
 			}
 
-		}, doc);
+		}, doc, durability);
+
+		if (!acknowledged) {
+			invalidate(collectionName);
+
+			JsonObject obj = new JsonObject();
+
+			obj.putNumber("query_result", UNACKNOWLEDGED_RESULT);
+			obj.putString("result_id", idStr);
+
+			saveMessage.reply(obj);
+		}
+	}
+
+	/**
+	 * Atomically modify or remove a single document and reply it. The query
+	 * should be of the following form
+	 * 
+	 * <pre>
+	 * { 
+	 * 		"collection" : "<i>name_of_collection</i>",
+	 * 		"query" : { <i>selects the document</i> },
+	 * 		"document" : { <i>the update, see update</i> },
+	 * 		"operators" : false,
+	 * 		"sort" : { <i>picks the first of several matches</i> },
+	 * 		"fields" : { <i>projection of the replied document</i> },
+	 * 		"upsert" : false,
+	 * 		"remove" : false,
+	 * 		"new" : false
+	 * }
+	 * </pre>
+	 * 
+	 * Either a document or remove has to be given. The reply contains the
+	 * document before the modification, or after it when <i>new</i> is true,
+	 * in the result field. The result is null when no document matched.
+	 * 
+	 * @param modifyMessage
+	 *            contains the query and the modification
+	 */
+	public void findAndModify(Message<JsonObject> modifyMessage) {
+		JsonObject modifyQuery = modifyMessage.body();
+
+		String collectionName = modifyQuery.getString("collection");
+		JsonObject queryDoc = modifyQuery.getObject("query");
+		JsonObject updateDoc = modifyQuery.getObject("document");
+		boolean remove = modifyQuery.getBoolean(QUERY_REMOVE, false);
+
+		if (collectionName == null)
+			castError(modifyMessage, ERROR_COLLECTION_NAME_CODE,
+					ERROR_COLLECTION_NAME_MSG);
+
+		if (queryDoc == null || (updateDoc == null && !remove))
+			castError(modifyMessage, ERROR_QUERY_DOCUMENT_CODE,
+					ERROR_QUERY_DOCUMENT_MSG);
+
+		FieldSchema schema = schemas.get(collectionName);
+
+		FindAndModify.Builder builder = FindAndModify.builder()
+				.query(MongoBsonEncoder.encode(queryDoc, schema))
+				.remove(remove)
+				.upsert(modifyQuery.getBoolean(QUERY_UPSERT, false))
+				.returnNew(modifyQuery.getBoolean(QUERY_NEW, false));
+
+		if (updateDoc != null && !remove) {
+			try {
+				builder.update(createUpdate(updateDoc,
+						modifyQuery.getBoolean(QUERY_OPERATORS, false), schema));
+			} catch (IllegalArgumentException e) {
+				castError(modifyMessage, ERROR_QUERY_CODE, e.getMessage());
+			}
+		}
+
+		JsonObject sort = modifyQuery.getObject(QUERY_SORT);
+		if (sort != null) {
+			builder.sort(MongoBsonEncoder.encode(sort));
+		}
+
+		JsonObject fields = modifyQuery.getObject(QUERY_FIELDS);
+		if (fields != null) {
+			builder.fields(MongoBsonEncoder.encode(fields));
+		}
+
+		MongoCollection collection = mongodb.getCollection(collectionName);
+
+		collection.findAndModifyAsync((error, result) -> {
+			if (error != null) {
+				castError(modifyMessage, -1, error.getMessage());
+			} else {
+				invalidate(collectionName);
+
+				JsonObject obj = new JsonObject();
+
+				obj.putObject("result", result == null ? null : MongoUtil
+						.convertBsonToJson(result));
+
+				modifyMessage.reply(obj);
+			}
+		}, builder.build());
 	}
 
 	/**
@@ -342,8 +814,11 @@ public class AsyncMongoPersistor extends Verticle {
 	 * </pre>
 	 * 
 	 * Optionally the <i>just_one</i> parameter can be set, this acts like the
-	 * justOne parameter on Mongo, defaults to false
+	 * justOne parameter on Mongo, defaults to false. A <i>write_concern</i>
+	 * can be set as well, an unacknowledged delete is replied with -1 right
+	 * away.
 	 * 
+	 * @see WriteConcerns
 	 * @param deleteMessage
 	 *            is the delete query message
 	 */
@@ -366,19 +841,35 @@ public class AsyncMongoPersistor extends Verticle {
 					ERROR_QUERY_DOCUMENT_MSG);
 		}
 
-		String deleteStr = MongoJsonEncoder.encode(deleteDoc);
-		Document doc = Json.parse(deleteStr);
+		Document doc = MongoBsonEncoder.encode(deleteDoc,
+				schemas.get(collectionName));
 
 		// Same default behavior as MongoDB
 		boolean justOne = deleteQuery.getBoolean("just_one", false);
 
+		Durability durability = getDurability(deleteMessage, collection);
+		boolean acknowledged = WriteConcerns.isAcknowledged(durability);
+
 		collection.deleteAsync((error, results) -> {
-			if (error != null) {
+			if (!acknowledged) {
+				// A find between the reply and the write may have cached
+				// the old documents
+				invalidate(collectionName);
+				logUnacknowledged(collectionName, error);
+			} else if (error != null) {
 				castError(deleteMessage, -1, error.getMessage());
 			} else {
+				invalidate(collectionName);
+
 				deleteMessage.reply(results);
 			}
-		}, doc, justOne);
+		}, doc, justOne, durability);
+
+		if (!acknowledged) {
+			invalidate(collectionName);
+
+			deleteMessage.reply(UNACKNOWLEDGED_RESULT);
+		}
 	}
 
 	/**
@@ -414,17 +905,48 @@ public class AsyncMongoPersistor extends Verticle {
 			castError(countMessage, ERROR_QUERY_DOCUMENT_CODE,
 					ERROR_QUERY_DOCUMENT_MSG);
 
-		String findStr = MongoJsonEncoder.encode(count);
+		Document doc = MongoBsonEncoder.encode(count,
+				schemas.get(collectionName));
+
+		Count query;
+		try {
+			query = createCountQuery(countQuery, doc);
+		} catch (IllegalArgumentException e) {
+			castError(countMessage, ERROR_QUERY_CODE, e.getMessage());
+			return;
+		}
 
-		Document doc = Json.parse(findStr);
+		String requestKey = QueryCache.requestKey(EVENT_DB_COUNT,
+				collectionName, countQuery);
 
-		Count query = createCountQuery(countQuery, doc);
+		String cacheKey = null;
+		if (cache != null && cache.isCached(collectionName)) {
+			cacheKey = cache.key(requestKey, collectionName);
+
+			Object cached = cache.get(cacheKey);
+			if (cached != null) {
+				countMessage.reply(cached);
+				return;
+			}
+		}
+		final String key = cacheKey;
+
+		Flight flight = inFlight.join(requestKey, collectionName, countMessage);
+		if (flight == null) {
+			// An identical count is in flight and will reply this message
+			return;
+		}
 
 		collection.countAsync((error, result) -> {
 			if (error != null) {
-				castError(countMessage, -1, error.getMessage());
+				inFlight.fail(requestKey, flight, -1, error.getMessage());
+				log.error(error.getMessage());
 			} else {
-				countMessage.reply(result);
+				if (key != null) {
+					cache.put(key, collectionName, result);
+				}
+
+				inFlight.reply(requestKey, flight, result);
 			}
 
 		}, query);
@@ -463,33 +985,248 @@ public class AsyncMongoPersistor extends Verticle {
 			castError(findMessage, ERROR_QUERY_DOCUMENT_CODE,
 					ERROR_QUERY_DOCUMENT_MSG);
 
-		String findStr = MongoJsonEncoder.encode(find);
+		Document doc = MongoBsonEncoder.encode(find,
+				schemas.get(collectionName));
+
+		if (PAGINATION_KEYSET.equals(findQuery.getString(QUERY_PAGINATION))) {
+			keysetFind(findMessage, collection, doc);
+			return;
+		}
+
+		Find query;
+		try {
+			query = createFindQuery(findQuery, doc);
+		} catch (IllegalArgumentException e) {
+			castError(findMessage, ERROR_QUERY_CODE, e.getMessage());
+			return;
+		}
+
+		String streamAddress = findQuery.getString(QUERY_STREAM_ADDRESS);
+
+		if (streamAddress != null) {
+			streamFind(findMessage, collection, query, streamAddress);
+			return;
+		}
 
-		Document doc = Json.parse(findStr);
+		String replyFormat = findQuery.getString(QUERY_REPLY_FORMAT,
+				REPLY_FORMAT_JSON);
 
-		Find query = createFindQuery(findQuery, doc);
+		String requestKey = QueryCache.requestKey(EVENT_DB_FIND,
+				collectionName, findQuery, FIND_KEY_FIELDS);
+
+		String cacheKey = null;
+		if (cache != null && cache.isCached(collectionName)) {
+			cacheKey = cache.key(requestKey, collectionName);
+
+			Object cached = cache.get(cacheKey);
+			if (cached != null) {
+				findMessage.reply(cached);
+				return;
+			}
+		}
+		final String key = cacheKey;
+
+		Flight flight = inFlight.join(requestKey, collectionName, findMessage);
+		if (flight == null) {
+			// An identical find is in flight and will reply this message
+			return;
+		}
+
+		collection.findAsync((error, results) -> {
+			if (error != null) {
+				inFlight.fail(requestKey, flight, -1, error.getMessage());
+				log.error(error.getMessage());
+			} else {
+				Object reply = createFindReply(results, replyFormat);
+
+				if (key != null) {
+					cache.put(key, collectionName, reply);
+				}
+
+				inFlight.reply(requestKey, flight, reply);
+			}
+
+		}, query);
+	}
+
+	/**
+	 * Find a page of documents with keyset pagination. The request contains a
+	 * <i>sort</i>, a <i>page_size</i> and, for every page but the first, the
+	 * <i>after</i> token of the previous page. The reply has the form
+	 * 
+	 * <pre>
+	 * { 
+	 * 		"results" : [ <i>documents of the page</i> ],
+	 * 		"next" :  "<i>after token of the next page, if there may be one</i>"
+	 * }
+	 * </pre>
+	 * 
+	 * Any skip in the request is ignored. A projection should include the sort
+	 * fields.
+	 * 
+	 * @see KeysetPage
+	 * @param findMessage
+	 *            contains the query parameters and the query document.
+	 * @param collection
+	 *            is the collection to query
+	 * @param doc
+	 *            is the query document of the request
+	 */
+	private void keysetFind(Message<JsonObject> findMessage,
+			MongoCollection collection, Document doc) {
+		JsonObject findQuery = findMessage.body();
+
+		String after = findQuery.getString(QUERY_AFTER);
+		int pageSize = findQuery.getInteger(QUERY_PAGE_SIZE, DEFAULT_PAGE_SIZE);
+
+		JsonObject sort;
+		Find query;
+		try {
+			sort = KeysetPage.uniqueSort(findQuery.getObject(QUERY_SORT));
+
+			JsonObject pageQuery = findQuery.copy();
+			pageQuery.putObject(QUERY_SORT, sort);
+			pageQuery.putNumber(QUERY_LIMIT, pageSize);
+			pageQuery.removeField(QUERY_SKIP);
+
+			Document pageDoc = (after == null) ? doc : KeysetPage.createQuery(
+					doc, sort, after);
+
+			query = createFindQuery(pageQuery, pageDoc);
+		} catch (IllegalArgumentException e) {
+			castError(findMessage, ERROR_QUERY_CODE, e.getMessage());
+			return;
+		}
 
 		collection.findAsync((error, results) -> {
 			if (error != null) {
 				castError(findMessage, -1, error.getMessage());
 			} else {
-				processFindResults(findMessage, results);
+				JsonArray jsonDocs = new JsonArray();
+				Document last = null;
+
+				for (Document result : results) {
+					jsonDocs.add(MongoUtil.convertBsonToJson(result));
+					last = result;
+				}
+
+				JsonObject reply = new JsonObject();
+				reply.putArray("results", jsonDocs);
+
+				if (last != null && jsonDocs.size() == pageSize) {
+					reply.putString(QUERY_NEXT,
+							KeysetPage.createToken(last, sort));
+				}
+
+				findMessage.reply(reply);
 			}
 
 		}, query);
 	}
 
 	/**
+	 * Open a cursor for a find query and reply the first batch. The
+	 * request has the same form as a find request, with an optional
+	 * <i>batch_size</i> for the number of documents per batch. Further batches
+	 * are retrieved with {@value #EVENT_DB_CURSOR_NEXT}.
+	 * 
+	 * @see CursorRegistry
+	 * @param openMessage
+	 *            contains the query parameters and the query document.
+	 */
+	public void openCursor(Message<JsonObject> openMessage) {
+		JsonObject findQuery = openMessage.body();
+
+		String collectionName = findQuery.getString("collection");
+
+		if (collectionName == null)
+			castError(openMessage, ERROR_COLLECTION_NAME_CODE,
+					ERROR_COLLECTION_NAME_MSG);
+
+		MongoCollection collection = mongodb.getCollection(collectionName);
+
+		JsonObject find = findQuery.getObject("document");
+
+		if (find == null)
+			castError(openMessage, ERROR_QUERY_DOCUMENT_CODE,
+					ERROR_QUERY_DOCUMENT_MSG);
+
+		Document doc = MongoBsonEncoder.encode(find,
+				schemas.get(collectionName));
+
+		try {
+			cursors.open(openMessage, collection,
+					createFindBuilder(findQuery, doc));
+		} catch (IllegalArgumentException e) {
+			castError(openMessage, ERROR_QUERY_CODE, e.getMessage());
+		}
+	}
+
+	/**
+	 * Stream the results of a find in batches to the stream address of the
+	 * request, so the consumer can process the first batch while the next are
+	 * still fetched. The size of a batch is bounded by
+	 * <i>stream_batch_size</i> documents and <i>stream_batch_bytes</i> bytes.
+	 * 
+	 * @see ResultStream
+	 * @param findMessage
+	 *            contains the query parameters and the query document.
+	 * @param collection
+	 *            is the collection to query
+	 * @param query
+	 *            is the find query
+	 * @param streamAddress
+	 *            is the address the batches are sent to
+	 */
+	private void streamFind(Message<JsonObject> findMessage,
+			MongoCollection collection, Find query, String streamAddress) {
+		JsonObject findQuery = findMessage.body();
+
+		int batchSize = findQuery.getInteger(QUERY_STREAM_BATCH_SIZE,
+				DEFAULT_STREAM_BATCH_SIZE);
+		long batchBytes = findQuery.getLong(QUERY_STREAM_BATCH_BYTES,
+				DEFAULT_STREAM_BATCH_BYTES);
+
+		collection.stream(new ResultStream(vertx, findMessage,
+				streamAddress, batchSize, batchBytes), query);
+	}
+
+	/**
+	 * Create a find query with the optional <i>limit</i>, <i>sort</i>,
+	 * <i>skip</i> and <i>fields</i> of the request. The fields projection
+	 * follows the MongoDB notation, e.g.
+	 * <code>{ "name" : 1, "_id" : 0, "comments" : { "$slice" : 5 } }</code>
+	 * The query can be tuned with <i>batch_size</i>, <i>hint</i> (an index
+	 * name or key document), <i>max_time</i> in milliseconds and
+	 * <i>read_preference</i>, which override the module defaults.
 	 * 
 	 * @param findQuery
 	 * @param doc
 	 * @return
 	 */
 	private Find createFindQuery(JsonObject findQuery, DocumentAssignable doc) {
+		return createFindBuilder(findQuery, doc).build();
+	}
+
+	/**
+	 * @see #createFindQuery(JsonObject, DocumentAssignable)
+	 */
+	private Builder createFindBuilder(JsonObject findQuery,
+			DocumentAssignable doc) {
 		Set<String> fieldNames = findQuery.getFieldNames();
 
 		Builder query = new Find.Builder(doc);
 
+		if (defaultBatchSize > 0) {
+			query.batchSize(defaultBatchSize);
+		}
+		if (defaultMaxTime > 0) {
+			query.maximumTime(defaultMaxTime, TimeUnit.MILLISECONDS);
+		}
+		if (defaultReadPreference != null) {
+			query.readPreference(defaultReadPreference);
+		}
+
 		for (String fieldName : fieldNames) {
 			if (fieldName.equals(QUERY_LIMIT)) {
 				int limit = findQuery.getInteger(QUERY_LIMIT);
@@ -498,7 +1235,7 @@ public class AsyncMongoPersistor extends Verticle {
 			if (fieldName.equals(QUERY_SORT)) {
 				JsonObject sort = findQuery.getObject(QUERY_SORT);
 
-				Document sortDoc = Json.parse(sort.toString());
+				Document sortDoc = MongoBsonEncoder.encode(sort);
 
 				query.sort(sortDoc);
 
@@ -508,24 +1245,97 @@ public class AsyncMongoPersistor extends Verticle {
 
 				query.skip(skip);
 			}
+			if (fieldName.equals(QUERY_FIELDS)) {
+				JsonObject fields = findQuery.getObject(QUERY_FIELDS);
+
+				query.projection(MongoBsonEncoder.encode(fields));
+			}
+			if (fieldName.equals(QUERY_BATCH_SIZE)) {
+				query.batchSize(findQuery.getInteger(QUERY_BATCH_SIZE));
+			}
+			if (fieldName.equals(QUERY_HINT)) {
+				Object hint = findQuery.getValue(QUERY_HINT);
+
+				if (hint instanceof String) {
+					query.hint((String) hint);
+				} else if (hint instanceof JsonObject) {
+					query.hint(MongoBsonEncoder.encode((JsonObject) hint));
+				}
+			}
+			if (fieldName.equals(QUERY_MAX_TIME)) {
+				query.maximumTime(findQuery.getLong(QUERY_MAX_TIME),
+						TimeUnit.MILLISECONDS);
+			}
+			if (fieldName.equals(QUERY_READ_PREFERENCE)) {
+				query.readPreference(parseReadPreference(findQuery
+						.getString(QUERY_READ_PREFERENCE)));
+			}
 
 		}
 
-		return query.build();
+		return query;
 	}
 
 	/**
+	 * Create a count query with the optional <i>hint</i>, <i>max_time</i> and
+	 * <i>read_preference</i> of the request
 	 * 
-	 * @param findQuery
+	 * @param countQuery
 	 * @param doc
 	 * @return
 	 */
 	private Count createCountQuery(JsonObject countQuery, DocumentAssignable doc) {
 		Count.Builder query = new Count.Builder(doc);
 
+		Object hint = countQuery.getValue(QUERY_HINT);
+		if (hint instanceof String) {
+			query.hint((String) hint);
+		} else if (hint instanceof JsonObject) {
+			query.hint(MongoBsonEncoder.encode((JsonObject) hint));
+		}
+
+		long maxTime = countQuery.getLong(QUERY_MAX_TIME, defaultMaxTime);
+		if (maxTime > 0) {
+			query.maximumTime(maxTime, TimeUnit.MILLISECONDS);
+		}
+
+		String readPreference = countQuery.getString(QUERY_READ_PREFERENCE);
+		if (readPreference != null) {
+			query.readPreference(parseReadPreference(readPreference));
+		} else if (defaultReadPreference != null) {
+			query.readPreference(defaultReadPreference);
+		}
+
 		return query.build();
 	}
 
+	/**
+	 * Convert a read preference name to the driver read preference
+	 * 
+	 * @param name
+	 *            is one of primary, primary_preferred, secondary,
+	 *            secondary_preferred or nearest
+	 * @return the read preference
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown
+	 */
+	static ReadPreference parseReadPreference(String name) {
+		if (READ_PRIMARY.equals(name)) {
+			return ReadPreference.PRIMARY;
+		} else if (READ_PRIMARY_PREFERRED.equals(name)) {
+			return ReadPreference.PREFER_PRIMARY;
+		} else if (READ_SECONDARY.equals(name)) {
+			return ReadPreference.SECONDARY;
+		} else if (READ_SECONDARY_PREFERRED.equals(name)) {
+			return ReadPreference.PREFER_SECONDARY;
+		} else if (READ_NEAREST.equals(name)) {
+			return ReadPreference.CLOSEST;
+		}
+
+		throw new IllegalArgumentException(String.format(
+				ERROR_READ_PREFERENCE_MSG, name));
+	}
+
 	/**
 	 * Reply an error message back to the message sender. The error will be
 	 * logged.
@@ -546,20 +1356,110 @@ public class AsyncMongoPersistor extends Verticle {
 	}
 
 	/**
+	 * Convert the results of a query to a reply in the requested format. Next
+	 * to the default JsonArray the results can be replied as JSON text in a
+	 * String or a Buffer, which is written straight from the documents.
 	 * 
-	 * @param message
-	 *            is the request event send for processing. A reply to message
-	 *            will reply send of an event.
 	 * @param docs
 	 *            are the resulting documents obtained from MongoDB
+	 * @param replyFormat
+	 *            is one of json, string or buffer
+	 * @return a JsonArray, String or Buffer
 	 */
-	private void processFindResults(Message<JsonObject> message,
-			MongoIterator<Document> docs) {
+	static Object createFindReply(Iterable<Document> docs,
+			String replyFormat) {
+		if (REPLY_FORMAT_STRING.equals(replyFormat)) {
+			return MongoJsonWriter.writeArray(docs);
+		} else if (REPLY_FORMAT_BUFFER.equals(replyFormat)) {
+			return new Buffer(MongoJsonWriter.writeArray(docs));
+		}
+
 		JsonArray jsonDocs = new JsonArray();
 
 		docs.forEach(doc -> jsonDocs.add(MongoUtil.convertBsonToJson(doc)));
 
-		message.reply(jsonDocs);
+		return jsonDocs;
+	}
+
+	/**
+	 * Create the update document of an update request
+	 * 
+	 * @param updateDoc
+	 *            is the document of the request
+	 * @param operators
+	 *            if true the document contains update operators, otherwise
+	 *            its fields are set
+	 * @param schema
+	 *            is the schema of the collection, may be null
+	 * @return the update document
+	 * @throws IllegalArgumentException
+	 *             if operators is true and the document contains a field that
+	 *             is not an operator
+	 */
+	static Document createUpdate(JsonObject updateDoc, boolean operators,
+			FieldSchema schema) {
+		Document doc = MongoBsonEncoder.encode(updateDoc, schema);
+
+		if (!operators) {
+			return new DocumentBuilderImpl().addDocument("$set", doc).build();
+		}
+
+		for (String field : updateDoc.getFieldNames()) {
+			if (!field.startsWith("$")) {
+				throw new IllegalArgumentException(String.format(
+						ERROR_UPDATE_OPERATOR_MSG, field));
+			}
+		}
+
+		return doc;
+	}
+
+	/**
+	 * Get the durability of a write request, see {@link WriteConcerns}
+	 * 
+	 * @param writeMessage
+	 *            is the write request, it is failed if its write concern is
+	 *            not valid
+	 * @param collection
+	 *            is the collection to write to
+	 * @return the durability of the write
+	 */
+	private Durability getDurability(Message<JsonObject> writeMessage,
+			MongoCollection collection) {
+		Durability durability = null;
+
+		try {
+			durability = writeConcerns.get(collection.getName(),
+					writeMessage.body());
+		} catch (IllegalArgumentException e) {
+			castError(writeMessage, ERROR_QUERY_CODE, e.getMessage());
+		}
+
+		return durability == null ? collection.getDurability() : durability;
+	}
+
+	/**
+	 * Unacknowledged writes are replied before they are sent, so their errors
+	 * can only be logged
+	 */
+	private void logUnacknowledged(String collectionName, Throwable error) {
+		if (error != null) {
+			log.error("Unacknowledged write to " + collectionName
+					+ " failed: " + error.getMessage());
+		}
+	}
+
+	/**
+	 * Invalidate the cached results of a collection after a write
+	 * 
+	 * @param collectionName
+	 *            is the name of the collection that was written to
+	 */
+	void invalidate(String collectionName) {
+		if (cache != null) {
+			cache.invalidate(collectionName);
+		}
+		inFlight.invalidate(collectionName);
 	}
 
 	/**
@@ -592,7 +1492,7 @@ public class AsyncMongoPersistor extends Verticle {
 			config.addCredential(credentials);
 		}
 
-		MongoClient mongoClient = MongoFactory.createClient(config);
+		mongoClient = MongoFactory.createClient(config);
 
 		MongoDatabase mongodb = mongoClient.getDatabase(database);
 
@@ -611,6 +1511,28 @@ public class AsyncMongoPersistor extends Verticle {
 		return gridFs;
 	}
 
+	private void initSchemas(JsonObject modConfig) {
+		JsonObject config = modConfig.getObject(CONFIG_SCHEMAS);
+
+		if (config != null) {
+			for (String collectionName : config.getFieldNames()) {
+				schemas.put(collectionName,
+						FieldSchema.fromJson(config.getObject(collectionName)));
+			}
+		}
+	}
+
+	private void initQueryDefaults(JsonObject modConfig) {
+		defaultBatchSize = modConfig.getInteger(CONFIG_DEFAULT_BATCH_SIZE, 0);
+		defaultMaxTime = modConfig.getLong(CONFIG_DEFAULT_MAX_TIME, 0);
+
+		String readPreference = modConfig
+				.getString(CONFIG_DEFAULT_READ_PREFERENCE);
+		if (readPreference != null) {
+			defaultReadPreference = parseReadPreference(readPreference);
+		}
+	}
+
 	// FIXME This only the bare minimum of password security should at least be
 	// taken from file
 	private Credential createCredentials(String userName, char[] password,
@@ -0,0 +1,507 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoDatabase;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.ObjectId;
+import com.allanbank.mongodb.builder.BatchedWrite;
+import com.allanbank.mongodb.builder.BatchedWriteMode;
+import com.allanbank.mongodb.builder.write.DeleteOperation;
+import com.allanbank.mongodb.builder.write.InsertOperation;
+import com.allanbank.mongodb.builder.write.UpdateOperation;
+import com.allanbank.mongodb.builder.write.WriteOperation;
+import com.allanbank.mongodb.error.BatchedWriteException;
+
+import eu.socie.mongo_async_persistor.util.FieldSchema;
+import eu.socie.mongo_async_persistor.util.MongoBsonEncoder;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Writes many documents of one collection with a single batched write, see
+ * also {@link #bulk(Message)} for mixed writes. A batch
+ * insert request has the form
+ *
+ * <pre>
+ * {
+ * 		"collection" : "<i>name_of_collection</i>",
+ * 		"documents" : [ <i>JSON documents to be stored</i> ],
+ * 		"ordered" : <i>true (default) to insert in the given order</i>,
+ * 		"continue_on_error" : <i>false (default) to stop at the first error</i>
+ * }
+ * </pre>
+ *
+ * and is replied with
+ *
+ * <pre>
+ * {
+ * 		"query_result" : <i>number of inserted documents</i>,
+ * 		"result_ids" : [ <i>id per document, null if it was not inserted</i> ],
+ * 		"errors" : [ { "index" : <i>position of the document</i>, "message" : "..." } ]
+ * }
+ * </pre>
+ *
+ * Documents without an _id get a new ObjectId before they are sent. An
+ * unordered insert always continues after an error, the server may reorder it.
+ * A write_concern can be set, see {@link WriteConcerns}. An unacknowledged
+ * write is replied right away with query_result -1 and no errors.
+ *
+ * @author Bram Wiekens
+ */
+public class BatchWriter {
+
+	public static final String FIELD_DOCUMENTS = "documents";
+	public static final String FIELD_ORDERED = "ordered";
+	public static final String FIELD_CONTINUE_ON_ERROR = "continue_on_error";
+	public static final String FIELD_OPERATIONS = "operations";
+
+	public static final String OPERATION_INSERT = "insert";
+	public static final String OPERATION_UPDATE = "update";
+	public static final String OPERATION_DELETE = "delete";
+
+	public static final String ERROR_SKIPPED_MSG = "Not written after an earlier error";
+	public static final String ERROR_OPERATION_MSG = "Operation %d is not a valid insert, update or delete";
+
+	private static final String ID = "_id";
+
+	private final MongoDatabase mongodb;
+	private final Map<String, FieldSchema> schemas;
+	private final WriteConcerns writeConcerns;
+	private final Consumer<String> onWrite;
+
+	/**
+	 * @param mongodb
+	 *            is the database to write to
+	 * @param schemas
+	 *            are the field types per collection
+	 * @param writeConcerns
+	 *            selects the durability of the writes
+	 * @param onWrite
+	 *            is called with the name of a collection after a write to it
+	 */
+	public BatchWriter(MongoDatabase mongodb, Map<String, FieldSchema> schemas,
+			WriteConcerns writeConcerns, Consumer<String> onWrite) {
+		this.mongodb = mongodb;
+		this.schemas = schemas;
+		this.writeConcerns = writeConcerns;
+		this.onWrite = onWrite;
+	}
+
+	/**
+	 * Insert all documents of the message with one batched write
+	 *
+	 * @param batchMessage
+	 *            contains the collection and the documents
+	 */
+	public void insert(Message<JsonObject> batchMessage) {
+		JsonObject batchQuery = batchMessage.body();
+
+		String collectionName = batchQuery.getString("collection");
+		JsonArray documents = batchQuery.getArray(FIELD_DOCUMENTS);
+
+		if (collectionName == null) {
+			batchMessage.fail(AsyncMongoPersistor.ERROR_COLLECTION_NAME_CODE,
+					AsyncMongoPersistor.ERROR_COLLECTION_NAME_MSG);
+			return;
+		}
+
+		if (documents == null || documents.size() == 0) {
+			batchMessage.fail(AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_CODE,
+					AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_MSG);
+			return;
+		}
+
+		FieldSchema schema = schemas.get(collectionName);
+
+		BatchedWrite.Builder write = BatchedWrite.builder().mode(
+				writeMode(batchQuery));
+
+		// The operations are the keys of the errors of a failed write
+		Map<WriteOperation, Integer> indexes = new IdentityHashMap<WriteOperation, Integer>();
+		List<Object> ids = new ArrayList<Object>(documents.size());
+
+		for (int i = 0; i < documents.size(); i++) {
+			Object value = documents.get(i);
+			if (!(value instanceof JsonObject)) {
+				batchMessage.fail(AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_CODE,
+						AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_MSG);
+				return;
+			}
+
+			WriteOperation insert = createInsert((JsonObject) value, schema,
+					ids);
+			indexes.put(insert, i);
+			write.write(insert);
+		}
+
+		Durability durability;
+		try {
+			durability = writeConcerns.get(collectionName, batchMessage.body());
+		} catch (IllegalArgumentException e) {
+			batchMessage.fail(AsyncMongoPersistor.ERROR_QUERY_CODE, e.getMessage());
+			return;
+		}
+
+		if (durability != null) {
+			write.durability(durability);
+		}
+
+		MongoCollection collection = mongodb.getCollection(collectionName);
+		boolean acknowledged = WriteConcerns.isAcknowledged(durability);
+
+		collection.writeAsync((error, results) -> {
+			if (!acknowledged) {
+				return;
+			}
+
+			if (error != null && !(error instanceof BatchedWriteException)) {
+				batchMessage.fail(-1, error.getMessage());
+				return;
+			}
+
+			onWrite.accept(collectionName);
+
+			JsonObject reply = new JsonObject();
+			JsonArray errors = new JsonArray();
+
+			if (error != null) {
+				BatchedWriteException batchError = (BatchedWriteException) error;
+
+				reply.putNumber("query_result", batchError.getN());
+				addErrors(errors, ids, indexes, batchError);
+			} else {
+				reply.putNumber("query_result", results);
+			}
+
+			reply.putArray("result_ids", new JsonArray(ids));
+			reply.putArray("errors", errors);
+
+			batchMessage.reply(reply);
+		}, write.build());
+
+		if (!acknowledged) {
+			onWrite.accept(collectionName);
+
+			JsonObject reply = new JsonObject();
+			reply.putNumber("query_result",
+					AsyncMongoPersistor.UNACKNOWLEDGED_RESULT);
+			reply.putArray("result_ids", new JsonArray(ids));
+			reply.putArray("errors", new JsonArray());
+
+			batchMessage.reply(reply);
+		}
+	}
+
+	/**
+	 * Perform a list of inserts, updates and deletes on one collection with
+	 * one batched write. The message should be of the following form
+	 *
+	 * <pre>
+	 * {
+	 * 		"collection" : "<i>name_of_collection</i>",
+	 * 		"ordered" : <i>true (default)</i>,
+	 * 		"continue_on_error" : <i>false (default)</i>,
+	 * 		"operations" : [
+	 * 			{ "insert" : { <i>document</i> } },
+	 * 			{ "update" : { "query" : {..}, "document" : {..}, "operators" : false, "multi" : false, "upsert" : false } },
+	 * 			{ "delete" : { "query" : {..}, "just_one" : false } }
+	 * 		]
+	 * }
+	 * </pre>
+	 *
+	 * An update works like mongo.async.update, with the same flags. The
+	 * reply contains the total number of affected documents in query_result,
+	 * the number of successful operations per kind in counts, the id of every
+	 * inserted document in result_ids (null for other operations) and the
+	 * failed and skipped operations in errors. The driver only reports the
+	 * total number of affected documents of a batched write, so counts are
+	 * operations, not documents.
+	 *
+	 * @param bulkMessage
+	 *            contains the collection and the operations
+	 */
+	public void bulk(Message<JsonObject> bulkMessage) {
+		JsonObject bulkQuery = bulkMessage.body();
+
+		String collectionName = bulkQuery.getString("collection");
+		JsonArray operations = bulkQuery.getArray(FIELD_OPERATIONS);
+
+		if (collectionName == null) {
+			bulkMessage.fail(AsyncMongoPersistor.ERROR_COLLECTION_NAME_CODE,
+					AsyncMongoPersistor.ERROR_COLLECTION_NAME_MSG);
+			return;
+		}
+
+		if (operations == null || operations.size() == 0) {
+			bulkMessage.fail(AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_CODE,
+					AsyncMongoPersistor.ERROR_QUERY_DOCUMENT_MSG);
+			return;
+		}
+
+		FieldSchema schema = schemas.get(collectionName);
+
+		BatchedWrite.Builder write = BatchedWrite.builder().mode(
+				writeMode(bulkQuery));
+
+		Map<WriteOperation, Integer> indexes = new IdentityHashMap<WriteOperation, Integer>();
+		List<Object> ids = new ArrayList<Object>(operations.size());
+		String[] kinds = new String[operations.size()];
+
+		for (int i = 0; i < operations.size(); i++) {
+			Object value = operations.get(i);
+
+			WriteOperation operation = null;
+			if (value instanceof JsonObject) {
+				JsonObject json = (JsonObject) value;
+
+				if (json.getObject(OPERATION_INSERT) != null) {
+					kinds[i] = OPERATION_INSERT;
+					operation = createInsert(json.getObject(OPERATION_INSERT),
+							schema, ids);
+				} else if (json.getObject(OPERATION_UPDATE) != null) {
+					kinds[i] = OPERATION_UPDATE;
+					try {
+						operation = createUpdate(
+								json.getObject(OPERATION_UPDATE), schema);
+					} catch (IllegalArgumentException e) {
+						bulkMessage.fail(AsyncMongoPersistor.ERROR_QUERY_CODE,
+								e.getMessage());
+						return;
+					}
+					ids.add(null);
+				} else if (json.getObject(OPERATION_DELETE) != null) {
+					kinds[i] = OPERATION_DELETE;
+					operation = createDelete(json.getObject(OPERATION_DELETE),
+							schema);
+					ids.add(null);
+				}
+			}
+
+			if (operation == null) {
+				bulkMessage.fail(AsyncMongoPersistor.ERROR_QUERY_CODE,
+						String.format(ERROR_OPERATION_MSG, i));
+				return;
+			}
+
+			indexes.put(operation, i);
+			write.write(operation);
+		}
+
+		Durability durability;
+		try {
+			durability = writeConcerns.get(collectionName, bulkMessage.body());
+		} catch (IllegalArgumentException e) {
+			bulkMessage.fail(AsyncMongoPersistor.ERROR_QUERY_CODE, e.getMessage());
+			return;
+		}
+
+		if (durability != null) {
+			write.durability(durability);
+		}
+
+		MongoCollection collection = mongodb.getCollection(collectionName);
+		boolean acknowledged = WriteConcerns.isAcknowledged(durability);
+
+		collection.writeAsync((error, results) -> {
+			if (!acknowledged) {
+				return;
+			}
+
+			if (error != null && !(error instanceof BatchedWriteException)) {
+				bulkMessage.fail(-1, error.getMessage());
+				return;
+			}
+
+			onWrite.accept(collectionName);
+
+			JsonObject reply = new JsonObject();
+			JsonArray errors = new JsonArray();
+
+			if (error != null) {
+				BatchedWriteException batchError = (BatchedWriteException) error;
+
+				reply.putNumber("query_result", batchError.getN());
+				addErrors(errors, ids, indexes, batchError);
+			} else {
+				reply.putNumber("query_result", results);
+			}
+
+			boolean[] failed = new boolean[kinds.length];
+			for (Object err : errors) {
+				failed[((JsonObject) err).getInteger("index")] = true;
+			}
+
+			JsonObject counts = new JsonObject().putNumber(OPERATION_INSERT, 0)
+					.putNumber(OPERATION_UPDATE, 0)
+					.putNumber(OPERATION_DELETE, 0);
+			for (int i = 0; i < kinds.length; i++) {
+				if (!failed[i]) {
+					counts.putNumber(kinds[i], counts.getInteger(kinds[i]) + 1);
+				}
+			}
+
+			reply.putObject("counts", counts);
+			reply.putArray("result_ids", new JsonArray(ids));
+			reply.putArray("errors", errors);
+
+			bulkMessage.reply(reply);
+		}, write.build());
+
+		if (!acknowledged) {
+			onWrite.accept(collectionName);
+
+			JsonObject reply = new JsonObject();
+			reply.putNumber("query_result",
+					AsyncMongoPersistor.UNACKNOWLEDGED_RESULT);
+			reply.putArray("result_ids", new JsonArray(ids));
+			reply.putArray("errors", new JsonArray());
+
+			bulkMessage.reply(reply);
+		}
+	}
+
+	/**
+	 * Create the insert of a document, a document without an _id gets a new
+	 * ObjectId. The id of the document is added to the ids.
+	 */
+	private WriteOperation createInsert(JsonObject json, FieldSchema schema,
+			List<Object> ids) {
+		Document doc = MongoBsonEncoder.encode(json, schema);
+
+		if (doc.get(ID) == null) {
+			ObjectId id = new ObjectId();
+			doc = withId(doc, id);
+			ids.add(id.toHexString());
+		} else {
+			Object id = json.getValue(ID);
+			ids.add(id instanceof JsonObject ? ((JsonObject) id).toMap() : id);
+		}
+
+		return new InsertOperation(doc);
+	}
+
+	private WriteOperation createUpdate(JsonObject json, FieldSchema schema) {
+		JsonObject queryDoc = json.getObject("query");
+		JsonObject updateDoc = json.getObject("document");
+
+		if (queryDoc == null || updateDoc == null) {
+			return null;
+		}
+
+		Document query = MongoBsonEncoder.encode(queryDoc, schema);
+		Document update = AsyncMongoPersistor.createUpdate(updateDoc,
+				json.getBoolean(AsyncMongoPersistor.QUERY_OPERATORS, false),
+				schema);
+
+		return new UpdateOperation(query, update, json.getBoolean(
+				AsyncMongoPersistor.QUERY_MULTI, false), json.getBoolean(
+				AsyncMongoPersistor.QUERY_UPSERT, false));
+	}
+
+	private WriteOperation createDelete(JsonObject json, FieldSchema schema) {
+		JsonObject queryDoc = json.getObject("query");
+
+		if (queryDoc == null) {
+			return null;
+		}
+
+		return new DeleteOperation(MongoBsonEncoder.encode(queryDoc, schema),
+				json.getBoolean("just_one", false));
+	}
+
+	/**
+	 * Add an error for every failed and skipped operation and clear the ids of
+	 * their documents
+	 */
+	static void addErrors(JsonArray errors, List<Object> ids,
+			Map<WriteOperation, Integer> indexes, BatchedWriteException error) {
+		JsonObject[] byIndex = new JsonObject[indexes.size()];
+
+		for (Map.Entry<WriteOperation, Throwable> failed : error.getErrors()
+				.entrySet()) {
+			Integer index = indexes.get(failed.getKey());
+			if (index != null) {
+				byIndex[index] = createError(index, failed.getValue()
+						.getMessage());
+			}
+		}
+
+		List<WriteOperation> skipped = error.getSkipped();
+		for (WriteOperation operation : skipped) {
+			Integer index = indexes.get(operation);
+			if (index != null && byIndex[index] == null) {
+				byIndex[index] = createError(index, ERROR_SKIPPED_MSG);
+			}
+		}
+
+		for (JsonObject failed : byIndex) {
+			if (failed != null) {
+				errors.addObject(failed);
+
+				if (ids != null) {
+					ids.set(failed.getInteger("index"), null);
+				}
+			}
+		}
+	}
+
+	private static JsonObject createError(int index, String message) {
+		JsonObject error = new JsonObject();
+		error.putNumber("index", index);
+		error.putString("message", message);
+
+		return error;
+	}
+
+	private static BatchedWriteMode writeMode(JsonObject query) {
+		if (!query.getBoolean(FIELD_ORDERED, true)) {
+			return BatchedWriteMode.REORDERED;
+		}
+
+		return query.getBoolean(FIELD_CONTINUE_ON_ERROR, false) ? BatchedWriteMode.SERIALIZE_AND_CONTINUE
+				: BatchedWriteMode.SERIALIZE_AND_STOP;
+	}
+
+	/**
+	 * Put a new _id in front of the fields of a document
+	 */
+	static Document withId(Document doc, ObjectId id) {
+		DocumentBuilder builder = BuilderFactory.start();
+		builder.addObjectId(ID, id);
+
+		for (Element element : doc) {
+			builder.add(element);
+		}
+
+		return builder.build();
+	}
+}
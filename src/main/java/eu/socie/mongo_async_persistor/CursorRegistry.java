@@ -0,0 +1,371 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.MongoClient;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoCursorControl;
+import com.allanbank.mongodb.StreamCallback;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.builder.Find;
+
+import eu.socie.mongo_async_persistor.util.MongoUtil;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Keeps cursors open between requests, so clients can page through a large
+ * result with a cursor id instead of tracking the skip themselves. Every
+ * reply has the form
+ *
+ * <pre>
+ * {
+ * 		"cursor_id" : "<i>id of the cursor</i>",
+ * 		"results" : [ <i>next batch of documents</i> ],
+ * 		"more" : <i>false when the cursor is exhausted and closed</i>
+ * }
+ * </pre>
+ *
+ * Every cursor streams from one server cursor that is opened with the query.
+ * The documents are buffered until there is one more than a batch, then the
+ * stream is stopped and the server cursor is left open. Once a batch has been
+ * replied the stream is restarted from the server cursor, so the next batch
+ * is usually fetched before it is asked for. No driver iterator is walked
+ * and no request waits on the event loop for a getMore. Requests for the same
+ * cursor are answered one after the other.
+ *
+ * Cursors that are not used for longer than the idle timeout are closed.
+ *
+ * @author Bram Wiekens
+ */
+public class CursorRegistry {
+
+	public static final String FIELD_CURSOR_ID = "cursor_id";
+	public static final String FIELD_BATCH_SIZE = "batch_size";
+
+	public static final int ERROR_NO_CURSOR_CODE = 1009;
+	public static final int ERROR_TOO_MANY_CURSORS_CODE = 1010;
+
+	public static final String ERROR_NO_CURSOR_MSG = "Cursor %s does not exist or has timed out";
+	public static final String ERROR_TOO_MANY_CURSORS_MSG = "Too many open cursors, the maximum is %d";
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_TIMEOUT = 60000;
+	public static final int DEFAULT_MAX_CURSORS = 100;
+
+	private static final long MIN_SWEEP_INTERVAL = 1000;
+
+	private final Map<String, Cursor> cursors = new ConcurrentHashMap<String, Cursor>();
+
+	private final MongoClient client;
+	private final Context context;
+	private final long timeout;
+	private final int maxCursors;
+
+	/**
+	 * The driver calls the stream from its own threads, every call is passed
+	 * on to the context of the verticle. The fields are only touched on that
+	 * context.
+	 */
+	private class Cursor implements StreamCallback<Document> {
+		private final String id;
+		private final int batchSize;
+		private final Deque<Document> buffered = new ArrayDeque<Document>();
+		private final Deque<Message<JsonObject>> waiting = new ArrayDeque<Message<JsonObject>>();
+		private MongoCursorControl control;
+		// The server cursor to restart from while the stream is stopped
+		private Document resume;
+		private boolean streaming;
+		private boolean stopping;
+		private boolean exhausted;
+		private boolean closed;
+		private long lastUsed;
+
+		private Cursor(String id, int batchSize) {
+			this.id = id;
+			this.batchSize = batchSize;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		@Override
+		public void callback(Document doc) {
+			context.runOnContext(v -> received(this, doc));
+		}
+
+		@Override
+		public void done() {
+			context.runOnContext(v -> streamed(this));
+		}
+
+		@Override
+		public void exception(Throwable thrown) {
+			context.runOnContext(v -> failed(this, thrown));
+		}
+	}
+
+	/**
+	 * Create a registry that closes idle cursors
+	 *
+	 * @param vertx
+	 *            is used to periodically close idle cursors, it has to be
+	 *            created from the context of the verticle
+	 * @param client
+	 *            is used to restart the server cursors
+	 * @param timeout
+	 *            is the idle time in milliseconds after which a cursor is
+	 *            closed
+	 * @param maxCursors
+	 *            is the maximum number of cursors that can be open at once
+	 */
+	public CursorRegistry(Vertx vertx, MongoClient client, long timeout,
+			int maxCursors) {
+		this.client = client;
+		this.context = vertx.currentContext();
+		this.timeout = timeout;
+		this.maxCursors = maxCursors;
+
+		vertx.setPeriodic(Math.max(timeout / 2, MIN_SWEEP_INTERVAL),
+				timerId -> closeIdle());
+	}
+
+	/**
+	 * Open a cursor for the query and reply the first batch. The cursor is
+	 * only kept when there are more results.
+	 *
+	 * @param openMessage
+	 *            is the open request, it may contain a batch_size
+	 * @param collection
+	 *            is the collection to query
+	 * @param query
+	 *            is the find query, its batch size is set to the batch_size
+	 * @throws IllegalArgumentException
+	 *             if the query is not valid
+	 */
+	public void open(Message<JsonObject> openMessage,
+			MongoCollection collection, Find.Builder query) {
+		if (cursors.size() >= maxCursors) {
+			openMessage.fail(ERROR_TOO_MANY_CURSORS_CODE,
+					String.format(ERROR_TOO_MANY_CURSORS_MSG, maxCursors));
+			return;
+		}
+
+		JsonObject request = openMessage.body();
+		int batchSize = Math.max(1, request.getInteger(FIELD_BATCH_SIZE,
+				DEFAULT_BATCH_SIZE));
+
+		// Build the query before the cursor is kept, an invalid query throws
+		// here
+		query.batchSize(batchSize);
+		Find find = query.build();
+
+		Cursor cursor = new Cursor(UUID.randomUUID().toString(), batchSize);
+		cursors.put(cursor.id, cursor);
+
+		cursor.waiting.add(openMessage);
+		cursor.streaming = true;
+		cursor.control = collection.stream(cursor, find);
+	}
+
+	/**
+	 * Reply the next batch of an open cursor
+	 *
+	 * @param nextMessage
+	 *            contains the cursor_id
+	 */
+	public void next(Message<JsonObject> nextMessage) {
+		String cursorId = nextMessage.body().getString(FIELD_CURSOR_ID);
+		Cursor cursor = cursorId == null ? null : cursors.get(cursorId);
+
+		if (cursor == null) {
+			nextMessage.fail(ERROR_NO_CURSOR_CODE,
+					String.format(ERROR_NO_CURSOR_MSG, cursorId));
+			return;
+		}
+
+		cursor.lastUsed = System.currentTimeMillis();
+		cursor.waiting.add(nextMessage);
+
+		serve(cursor);
+	}
+
+	/**
+	 * Close a cursor before it is exhausted
+	 *
+	 * @param closeMessage
+	 *            contains the cursor_id
+	 */
+	public void close(Message<JsonObject> closeMessage) {
+		String cursorId = closeMessage.body().getString(FIELD_CURSOR_ID);
+		Cursor cursor = cursorId == null ? null : cursors.remove(cursorId);
+
+		if (cursor != null) {
+			close(cursor);
+		}
+
+		JsonObject reply = new JsonObject();
+		reply.putString(FIELD_CURSOR_ID, cursorId);
+		reply.putBoolean("closed", cursor != null);
+
+		closeMessage.reply(reply);
+	}
+
+	/**
+	 * @return the number of open cursors
+	 */
+	public int size() {
+		return cursors.size();
+	}
+
+	private void received(Cursor cursor, Document doc) {
+		if (cursor.closed) {
+			return;
+		}
+
+		cursor.buffered.add(doc);
+
+		// The batches that were already requested still arrive after the stop
+		if (!cursor.stopping && cursor.buffered.size() > cursor.batchSize) {
+			cursor.stopping = true;
+			cursor.control.stop();
+		}
+
+		serve(cursor);
+	}
+
+	private void streamed(Cursor cursor) {
+		cursor.streaming = false;
+
+		if (cursor.stopping) {
+			cursor.stopping = false;
+			// Null when the server cursor was exhausted anyway
+			cursor.resume = cursor.control.asDocument();
+			cursor.exhausted = cursor.resume == null;
+		} else {
+			cursor.exhausted = true;
+		}
+
+		if (!cursor.closed) {
+			serve(cursor);
+		}
+	}
+
+	private void failed(Cursor cursor, Throwable thrown) {
+		cursor.streaming = false;
+
+		if (cursor.closed) {
+			return;
+		}
+
+		cursors.remove(cursor.id);
+		cursor.closed = true;
+		cursor.buffered.clear();
+
+		while (!cursor.waiting.isEmpty()) {
+			cursor.waiting.poll().fail(-1, thrown.getMessage());
+		}
+	}
+
+	/**
+	 * Reply the waiting requests for which a full batch is buffered and
+	 * restart the stream when the buffer runs low
+	 */
+	private void serve(Cursor cursor) {
+		// Only a buffer of batch_size + 1 documents is known to have a next
+		// batch
+		while (!cursor.waiting.isEmpty()
+				&& (cursor.exhausted || cursor.buffered.size() > cursor.batchSize)) {
+			cursor.waiting.poll().reply(nextBatch(cursor));
+		}
+
+		if (!cursor.closed && !cursor.exhausted && !cursor.streaming
+				&& cursor.buffered.size() <= cursor.batchSize) {
+			restart(cursor);
+		}
+	}
+
+	private void restart(Cursor cursor) {
+		Document resume = cursor.resume;
+		cursor.resume = null;
+
+		cursor.streaming = true;
+		cursor.control = client.restart(cursor, resume);
+	}
+
+	private JsonObject nextBatch(Cursor cursor) {
+		JsonArray results = new JsonArray();
+
+		for (int i = 0; i < cursor.batchSize && !cursor.buffered.isEmpty(); i++) {
+			results.add(MongoUtil.convertBsonToJson(cursor.buffered.poll()));
+		}
+
+		boolean more = !cursor.exhausted || !cursor.buffered.isEmpty();
+		if (!more) {
+			cursors.remove(cursor.id);
+			cursor.closed = true;
+		}
+
+		JsonObject reply = new JsonObject();
+		reply.putString(FIELD_CURSOR_ID, cursor.id);
+		reply.putArray("results", results);
+		reply.putBoolean("more", more);
+
+		return reply;
+	}
+
+	/**
+	 * Kill the server cursor and fail the requests that still wait on it
+	 */
+	private void close(Cursor cursor) {
+		cursor.closed = true;
+		cursor.buffered.clear();
+
+		if (!cursor.exhausted && cursor.control != null) {
+			cursor.control.close();
+		}
+
+		while (!cursor.waiting.isEmpty()) {
+			cursor.waiting.poll().fail(ERROR_NO_CURSOR_CODE,
+					String.format(ERROR_NO_CURSOR_MSG, cursor.id));
+		}
+	}
+
+	private void closeIdle() {
+		long idleSince = System.currentTimeMillis() - timeout;
+
+		Iterator<Cursor> it = cursors.values().iterator();
+		while (it.hasNext()) {
+			Cursor cursor = it.next();
+
+			if (cursor.waiting.isEmpty() && cursor.lastUsed < idleSince) {
+				it.remove();
+				close(cursor);
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.streams.WriteStream;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * A WriteStream that sends every buffer to an event bus address. The receiver
+ * has to reply every buffer, the queue is full while the maximum number of
+ * buffers is waiting for a reply. Together with the drain handler this gives
+ * the same backpressure as a socket or an HTTP response.
+ *
+ * Not thread safe, like other vert.x streams it has to be used from the
+ * context that created it.
+ *
+ * @author Bram Wiekens
+ */
+public class EventBusStream implements WriteStream<EventBusStream> {
+
+	public static final int DEFAULT_MAX_UNACKED = 4;
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	private final EventBus eventBus;
+	private final String address;
+	private final long timeout;
+
+	private int maxUnacked = DEFAULT_MAX_UNACKED;
+	private int unacked;
+	private boolean failed;
+
+	private Handler<Void> drainHandler;
+	private Handler<Void> endHandler;
+	private Handler<Throwable> exceptionHandler;
+
+	public EventBusStream(EventBus eventBus, String address, long timeout) {
+		this.eventBus = eventBus;
+		this.address = address;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public EventBusStream write(Buffer data) {
+		unacked++;
+
+		eventBus.sendWithTimeout(address, data, timeout, reply -> {
+			if (reply.failed()) {
+				fail(reply.cause());
+			} else {
+				acknowledged();
+			}
+		});
+
+		return this;
+	}
+
+	@Override
+	public EventBusStream setWriteQueueMaxSize(int maxSize) {
+		maxUnacked = Math.max(1, maxSize);
+		return this;
+	}
+
+	@Override
+	public boolean writeQueueFull() {
+		return unacked >= maxUnacked;
+	}
+
+	@Override
+	public EventBusStream drainHandler(Handler<Void> handler) {
+		drainHandler = handler;
+		return this;
+	}
+
+	@Override
+	public EventBusStream exceptionHandler(Handler<Throwable> handler) {
+		exceptionHandler = handler;
+		return this;
+	}
+
+	/**
+	 * Call the handler once every buffer has been replied. A stream that
+	 * fails does not complete, the exception handler is called instead.
+	 *
+	 * @param handler
+	 *            is called when the stream is complete
+	 */
+	public void end(Handler<Void> handler) {
+		if (unacked == 0) {
+			handler.handle(null);
+		} else {
+			endHandler = handler;
+		}
+	}
+
+	/**
+	 * @return true if a buffer was not replied in time, nothing will drain
+	 *         or complete anymore
+	 */
+	public boolean failed() {
+		return failed;
+	}
+
+	private void acknowledged() {
+		unacked--;
+
+		// Drain at half the queue, so the next batch is on its way before the
+		// receiver runs dry
+		if (drainHandler != null && unacked <= maxUnacked / 2) {
+			Handler<Void> handler = drainHandler;
+			drainHandler = null;
+			handler.handle(null);
+		}
+
+		if (endHandler != null && unacked == 0) {
+			Handler<Void> handler = endHandler;
+			endHandler = null;
+			handler.handle(null);
+		}
+	}
+
+	private void fail(Throwable cause) {
+		if (failed) {
+			return;
+		}
+		failed = true;
+
+		// Nothing will drain anymore
+		drainHandler = null;
+		endHandler = null;
+
+		if (exceptionHandler != null) {
+			exceptionHandler.handle(cause);
+		}
+	}
+}
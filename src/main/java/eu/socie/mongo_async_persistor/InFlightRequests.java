@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Coalesces identical requests that are in flight at the same time, so only
+ * the first one is sent to MongoDB and its result is replied to all of them.
+ * Requests are identified by their request key, see
+ * {@link QueryCache#requestKey(String, String, JsonObject, String...)}.
+ *
+ * @author Bram Wiekens
+ */
+public class InFlightRequests {
+
+	/**
+	 * The requests that wait for the same result
+	 */
+	public static class Flight {
+		private final String collection;
+		private final List<Message<JsonObject>> messages = new ArrayList<Message<JsonObject>>();
+
+		private Flight(String collection) {
+			this.collection = collection;
+		}
+	}
+
+	private final Map<String, Flight> flights = new HashMap<String, Flight>();
+	private final boolean enabled;
+
+	/**
+	 * @param enabled
+	 *            if false every request starts its own flight
+	 */
+	public InFlightRequests(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Join the flight of a request. The message that starts a flight has to
+	 * perform the request and {@link #complete(String, Flight)} it.
+	 *
+	 * @param key
+	 *            is the request key
+	 * @param collection
+	 *            is the name of the collection
+	 * @param message
+	 *            is the message to reply when the request completes
+	 * @return the new flight if the message started one, null if it waits for
+	 *         a request that is already in flight
+	 */
+	public synchronized Flight join(String key, String collection,
+			Message<JsonObject> message) {
+		Flight flight = enabled ? flights.get(key) : null;
+
+		if (flight != null) {
+			flight.messages.add(message);
+			return null;
+		}
+
+		flight = new Flight(collection);
+		flight.messages.add(message);
+
+		if (enabled) {
+			flights.put(key, flight);
+		}
+
+		return flight;
+	}
+
+	/**
+	 * Complete a flight by replying the result to all its messages
+	 *
+	 * @param key
+	 *            is the request key
+	 * @param flight
+	 *            is the flight returned by join
+	 * @param reply
+	 *            is the result of the request
+	 */
+	public void reply(String key, Flight flight, Object reply) {
+		for (Message<JsonObject> message : complete(key, flight)) {
+			message.reply(reply);
+		}
+	}
+
+	/**
+	 * Complete a flight by failing all its messages
+	 *
+	 * @param key
+	 *            is the request key
+	 * @param flight
+	 *            is the flight returned by join
+	 * @param errorCode
+	 *            the error code to send back to the end user
+	 * @param errorMsg
+	 *            the readable message for the end user
+	 */
+	public void fail(String key, Flight flight, int errorCode, String errorMsg) {
+		for (Message<JsonObject> message : complete(key, flight)) {
+			message.fail(errorCode, errorMsg);
+		}
+	}
+
+	private synchronized List<Message<JsonObject>> complete(String key,
+			Flight flight) {
+		if (flights.get(key) == flight) {
+			flights.remove(key);
+		}
+
+		return flight.messages;
+	}
+
+	/**
+	 * Detach the flights of a collection after a write, so new requests do not
+	 * join a query that started before the write. Messages that already joined
+	 * still get their reply.
+	 *
+	 * @param collection
+	 *            is the name of the collection that was written to
+	 */
+	public synchronized void invalidate(String collection) {
+		Iterator<Flight> it = flights.values().iterator();
+
+		while (it.hasNext()) {
+			if (it.next().collection.equals(collection)) {
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.NullElement;
+import com.allanbank.mongodb.bson.io.BsonInputStream;
+import com.allanbank.mongodb.bson.io.BsonOutputStream;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Keyset (seek) pagination. Instead of skipping the documents of earlier pages
+ * the query continues after the sort values of the last document of the
+ * previous page. These values are passed around in an opaque "after" token,
+ * which is the Base64 encoded BSON document of the sort values and _id of the
+ * last document, so their types survive the round trip.
+ *
+ * The _id is always added as the last sort field to make the order unique. For
+ * a sort on a and b the query for the next page becomes
+ *
+ * <pre>
+ * { "$or" : [ { "a" : { "$gt" : a0 } },
+ *             { "a" : a0, "b" : { "$gt" : b0 } },
+ *             { "a" : a0, "b" : b0, "_id" : { "$gt" : id0 } } ] }
+ * </pre>
+ *
+ * with $lt for descending fields. Documents without a sort field sort as
+ * null, before all values. When the last value was null, the documents after
+ * it ascending are the ones with a value, { "a" : { "$ne" : null } }, and
+ * there are none after it descending. Descending, the documents without a
+ * value also follow a value, so a clause { "a" : null } is added next to
+ * { "a" : { "$lt" : a0 } }.
+ *
+ * Only top level fields can be used to sort.
+ *
+ * @author Bram Wiekens
+ */
+public class KeysetPage {
+
+	private static final String ID = "_id";
+
+	public static final String ERROR_NESTED_SORT_MSG = "Keyset pages can only be sorted on top level fields, not on %s";
+
+	private KeysetPage() {
+	}
+
+	/**
+	 * Add the _id to the sort, if it is not sorted on already
+	 *
+	 * @param sort
+	 *            is the sort of the request, may be null
+	 * @return the sort including _id
+	 * @throws IllegalArgumentException
+	 *             if the sort contains a nested field
+	 */
+	public static JsonObject uniqueSort(JsonObject sort) {
+		JsonObject unique = sort == null ? new JsonObject() : sort.copy();
+
+		for (String field : unique.getFieldNames()) {
+			// The values of the last document are looked up by name
+			if (field.indexOf('.') >= 0) {
+				throw new IllegalArgumentException(String.format(
+						ERROR_NESTED_SORT_MSG, field));
+			}
+		}
+
+		if (!unique.containsField(ID)) {
+			unique.putNumber(ID, 1);
+		}
+
+		return unique;
+	}
+
+	/**
+	 * Restrict a query to the documents after the token
+	 *
+	 * @param query
+	 *            is the query of the request
+	 * @param sort
+	 *            is the unique sort, see {@link #uniqueSort(JsonObject)}
+	 * @param after
+	 *            is the token of the previous page
+	 * @return the query for the next page
+	 * @throws IllegalArgumentException
+	 *             if the token cannot be decoded
+	 */
+	public static Document createQuery(Document query, JsonObject sort,
+			String after) {
+		Document last = decodeToken(after);
+
+		List<String> fields = new ArrayList<String>(sort.getFieldNames());
+
+		DocumentBuilder builder = BuilderFactory.start();
+
+		ArrayBuilder or;
+		if (query.getElements().isEmpty()) {
+			or = builder.pushArray("$or");
+		} else {
+			ArrayBuilder and = builder.pushArray("$and");
+			and.addDocument(query);
+			or = and.push().pushArray("$or");
+		}
+
+		for (int i = 0; i < fields.size(); i++) {
+			String field = fields.get(i);
+			Element value = last.get(field);
+			boolean descending = isDescending(sort, field);
+
+			if (value == null || value instanceof NullElement) {
+				// Null sorts first, descending nothing follows it
+				if (!descending) {
+					addPrefix(or.push(), fields, i, last).push(field).addNull(
+							"$ne");
+				}
+			} else {
+				addValue(addPrefix(or.push(), fields, i, last).push(field),
+						descending ? "$lt" : "$gt", value);
+
+				if (descending) {
+					addPrefix(or.push(), fields, i, last).addNull(field);
+				}
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Create the token of the page that ends with the last document
+	 *
+	 * @param last
+	 *            is the last document of the page
+	 * @param sort
+	 *            is the unique sort, see {@link #uniqueSort(JsonObject)}
+	 * @return the token for the next page
+	 */
+	public static String createToken(Document last, JsonObject sort) {
+		DocumentBuilder token = BuilderFactory.start();
+
+		for (String field : sort.getFieldNames()) {
+			addValue(token, field, last.get(field));
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			new BsonOutputStream(bytes).writeDocument(token.build());
+
+			return Base64.getUrlEncoder().encodeToString(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Document decodeToken(String after) {
+		try {
+			byte[] bytes = Base64.getUrlDecoder().decode(after);
+
+			return new BsonInputStream(new ByteArrayInputStream(bytes))
+					.readDocument();
+		} catch (IllegalArgumentException | IOException e) {
+			throw new IllegalArgumentException("Invalid after token " + after);
+		}
+	}
+
+	/**
+	 * Add the values of the last document for the fields before index, the
+	 * documents of the clause are equal on those
+	 */
+	private static DocumentBuilder addPrefix(DocumentBuilder clause,
+			List<String> fields, int index, Document last) {
+		for (int j = 0; j < index; j++) {
+			addValue(clause, fields.get(j), last.get(fields.get(j)));
+		}
+
+		return clause;
+	}
+
+	private static boolean isDescending(JsonObject sort, String field) {
+		Number direction = sort.getNumber(field);
+
+		return direction != null && direction.intValue() < 0;
+	}
+
+	/**
+	 * Documents without the sort field sort as null
+	 */
+	private static void addValue(DocumentBuilder builder, String name,
+			Element value) {
+		if (value == null) {
+			builder.addNull(name);
+		} else {
+			builder.add(value.withName(name));
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * A size bounded LRU cache for the replies of find and count. It is
+ * configured in the module config:
+ *
+ * <pre>
+ * "cache" : {
+ * 		"max_entries" : 1000,
+ * 		"ttl" : 1000,
+ * 		"collections" : { "<i>name_of_collection</i>" : 5000 }
+ * }
+ * </pre>
+ *
+ * The ttl is in milliseconds, the collections override the default ttl and a
+ * ttl of 0 disables caching for a collection. Writes invalidate a collection
+ * by moving it to a new generation, which is part of every key, so entries of
+ * older generations are never hit again and age out of the LRU.
+ *
+ * @author Bram Wiekens
+ */
+public class QueryCache {
+
+	public static final String CONFIG_MAX_ENTRIES = "max_entries";
+	public static final String CONFIG_TTL = "ttl";
+	public static final String CONFIG_COLLECTIONS = "collections";
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_TTL = 1000;
+
+	private static final char SEPARATOR = '\u0000';
+
+	private static class Entry {
+		private final Object value;
+		private final long expires;
+
+		private Entry(Object value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxEntries;
+	private final long defaultTtl;
+	private final Map<String, Long> ttls = new HashMap<String, Long>();
+
+	private final Map<String, Long> generations = new HashMap<String, Long>();
+	private final LinkedHashMap<String, Entry> entries;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public QueryCache(JsonObject config) {
+		maxEntries = config.getInteger(CONFIG_MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+		defaultTtl = config.getLong(CONFIG_TTL, DEFAULT_TTL);
+
+		JsonObject collections = config.getObject(CONFIG_COLLECTIONS);
+		if (collections != null) {
+			for (String collection : collections.getFieldNames()) {
+				ttls.put(collection, collections.getLong(collection));
+			}
+		}
+
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Entry> eldest) {
+				if (size() > maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param collection
+	 *            is the name of the collection
+	 * @return true if the results of the collection are cached
+	 */
+	public boolean isCached(String collection) {
+		return getTtl(collection) > 0;
+	}
+
+	/**
+	 * Create the cache key for a request. The key is the request key followed
+	 * by the current generation of the collection.
+	 *
+	 * @see #requestKey(String, String, JsonObject, String...)
+	 * @param requestKey
+	 *            is the key of the request
+	 * @param collection
+	 *            is the name of the collection
+	 * @return the key
+	 */
+	public synchronized String key(String requestKey, String collection) {
+		return requestKey + SEPARATOR + generation(collection);
+	}
+
+	/**
+	 * Create a key that identifies the result of a request. Only the parts of
+	 * the request that change the result are used, the top level fields of the
+	 * query document are sorted since their order does not matter.
+	 *
+	 * @param operation
+	 *            is the kind of request, e.g. find or count
+	 * @param collection
+	 *            is the name of the collection
+	 * @param request
+	 *            is the body of the request
+	 * @param parts
+	 *            are the fields of the request that change the result
+	 * @return the key
+	 */
+	public static String requestKey(String operation, String collection,
+			JsonObject request, String... parts) {
+		StringBuilder key = new StringBuilder(128);
+
+		key.append(operation).append(SEPARATOR).append(collection);
+
+		JsonObject document = request.getObject("document");
+		if (document != null) {
+			key.append(SEPARATOR).append(
+					Json.encode(new TreeMap<String, Object>(document.toMap())));
+		}
+
+		for (String part : parts) {
+			Object value = request.getValue(part);
+
+			key.append(SEPARATOR).append(part).append('=');
+			if (value instanceof JsonObject) {
+				key.append(((JsonObject) value).encode());
+			} else if (value instanceof JsonArray) {
+				key.append(((JsonArray) value).encode());
+			} else if (value != null) {
+				key.append(value);
+			}
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * Get a cached reply
+	 *
+	 * @param key
+	 *            is the key of the request
+	 * @return the cached reply or null if there is no valid entry
+	 */
+	public synchronized Object get(String key) {
+		Entry entry = entries.get(key);
+
+		if (entry != null && entry.expires > System.currentTimeMillis()) {
+			hits++;
+			return entry.value;
+		}
+
+		if (entry != null) {
+			entries.remove(key);
+		}
+		misses++;
+
+		return null;
+	}
+
+	/**
+	 * Cache a reply
+	 *
+	 * @param key
+	 *            is the key of the request
+	 * @param collection
+	 *            is the name of the collection
+	 * @param value
+	 *            is the reply to cache
+	 */
+	public synchronized void put(String key, String collection, Object value) {
+		entries.put(key, new Entry(value, System.currentTimeMillis()
+				+ getTtl(collection)));
+	}
+
+	/**
+	 * Invalidate all cached replies of a collection
+	 *
+	 * @param collection
+	 *            is the name of the collection that has changed
+	 */
+	public synchronized void invalidate(String collection) {
+		generations.put(collection, generation(collection) + 1);
+	}
+
+	/**
+	 * @return the number of hits, misses, evictions and entries and the hit
+	 *         rate
+	 */
+	public synchronized JsonObject stats() {
+		long requests = hits + misses;
+
+		JsonObject stats = new JsonObject();
+		stats.putNumber("hits", hits);
+		stats.putNumber("misses", misses);
+		stats.putNumber("hit_rate", requests == 0 ? 0.0 : (double) hits
+				/ requests);
+		stats.putNumber("evictions", evictions);
+		stats.putNumber("entries", entries.size());
+
+		return stats;
+	}
+
+	private long getTtl(String collection) {
+		Long ttl = ttls.get(collection);
+
+		return ttl == null ? defaultTtl : ttl;
+	}
+
+	private long generation(String collection) {
+		Long generation = generations.get(collection);
+
+		return generation == null ? 0 : generation;
+	}
+}
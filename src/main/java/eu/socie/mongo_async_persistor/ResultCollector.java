@@ -0,0 +1,61 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.allanbank.mongodb.LambdaCallback;
+import com.allanbank.mongodb.StreamCallback;
+import com.allanbank.mongodb.bson.Document;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Collects the documents of a streamed query and passes them to the callback
+ * once the query is done. Unlike iterating a MongoIterator this never waits
+ * for the next batch, the driver pushes the documents as they arrive.
+ *
+ * @author Bram Wiekens
+ */
+public class ResultCollector implements StreamCallback<Document> {
+
+	private final List<Document> results = new ArrayList<Document>();
+	private final LambdaCallback<List<Document>> callback;
+
+	/**
+	 * @param callback
+	 *            is called with all documents, or with the error of the query
+	 */
+	public ResultCollector(LambdaCallback<List<Document>> callback) {
+		this.callback = callback;
+	}
+
+	@Override
+	public void callback(Document doc) {
+		results.add(doc);
+	}
+
+	@Override
+	public void done() {
+		callback.accept(null, results);
+	}
+
+	@Override
+	public void exception(Throwable thrown) {
+		callback.accept(thrown, null);
+	}
+}
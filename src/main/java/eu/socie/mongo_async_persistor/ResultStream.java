@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.StreamCallback;
+import com.allanbank.mongodb.bson.Document;
+
+import eu.socie.mongo_async_persistor.util.MongoUtil;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Sends the results of a streaming find in batches to the stream address of
+ * the request, while the driver is still fetching the next documents. Every
+ * batch is a message of the form
+ *
+ * <pre>
+ * {
+ * 		"batch" : <i>sequence number, starting at 0</i>,
+ * 		"results" : [ <i>documents</i> ],
+ * 		"last" : <i>true for the final batch</i>
+ * }
+ * </pre>
+ *
+ * A batch is sent when it holds batchSize documents or when the BSON size of
+ * its documents reaches batchBytes. When the last batch has been sent the
+ * original find message is replied with the number of documents and batches.
+ * If the query fails the last batch contains an "error" field and the find
+ * message is failed.
+ *
+ * The documents are converted on the thread of the driver, the batches and
+ * the reply are sent from the context of the verticle.
+ *
+ * @author Bram Wiekens
+ */
+public class ResultStream implements StreamCallback<Document> {
+
+	private final EventBus eventBus;
+	private final Context context;
+	private final Message<JsonObject> message;
+	private final String address;
+	private final int batchSize;
+	private final long batchBytes;
+
+	private JsonArray results = new JsonArray();
+	private long resultBytes = 0;
+	private int batch = 0;
+	private long count = 0;
+
+	/**
+	 * Create a stream that sends the batches to the address
+	 *
+	 * @param vertx
+	 *            is used to send the batches, it has to be created from the
+	 *            context of the verticle
+	 * @param message
+	 *            is the find message that is replied at the end
+	 * @param address
+	 *            is the address the batches are sent to
+	 * @param batchSize
+	 *            is the maximum number of documents in a batch
+	 * @param batchBytes
+	 *            is the BSON size at which a batch is sent
+	 */
+	public ResultStream(Vertx vertx, Message<JsonObject> message,
+			String address, int batchSize, long batchBytes) {
+		this.eventBus = vertx.eventBus();
+		this.context = vertx.currentContext();
+		this.message = message;
+		this.address = address;
+		this.batchSize = batchSize;
+		this.batchBytes = batchBytes;
+	}
+
+	@Override
+	public void callback(Document doc) {
+		results.add(MongoUtil.convertBsonToJson(doc));
+		resultBytes += doc.size();
+		count++;
+
+		if (results.size() >= batchSize || resultBytes >= batchBytes) {
+			send(createBatch(false));
+		}
+	}
+
+	@Override
+	public void done() {
+		send(createBatch(true));
+
+		JsonObject reply = new JsonObject();
+		reply.putNumber("count", count);
+		reply.putNumber("batches", batch);
+
+		context.runOnContext(v -> message.reply(reply));
+	}
+
+	@Override
+	public void exception(Throwable thrown) {
+		JsonObject last = createBatch(true);
+		last.putString("error", thrown.getMessage());
+
+		send(last);
+
+		context.runOnContext(v -> message.fail(-1, thrown.getMessage()));
+	}
+
+	private JsonObject createBatch(boolean last) {
+		JsonObject batchMsg = new JsonObject();
+		batchMsg.putNumber("batch", batch);
+		batchMsg.putArray("results", results);
+		batchMsg.putBoolean("last", last);
+
+		batch++;
+		results = new JsonArray();
+		resultBytes = 0;
+
+		return batchMsg;
+	}
+
+	private void send(JsonObject batchMsg) {
+		context.runOnContext(v -> eventBus.send(address, batchMsg));
+	}
+}
@@ -0,0 +1,682 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoDatabase;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.StringElement;
+import com.allanbank.mongodb.builder.Aggregate;
+import com.allanbank.mongodb.builder.BatchedWrite;
+import com.allanbank.mongodb.builder.BatchedWriteMode;
+import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.builder.write.UpdateOperation;
+import com.allanbank.mongodb.error.BatchedWriteException;
+import com.allanbank.mongodb.error.DuplicateKeyException;
+
+import eu.socie.mongo_async_persistor.util.FieldSchema;
+import eu.socie.mongo_async_persistor.util.MongoBsonEncoder;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Materialized rollups of a $group over an append-mostly collection. A rollup
+ * is registered with
+ *
+ * <pre>
+ * {
+ * 		"name" : "<i>name_of_rollup</i>",
+ * 		"collection" : "<i>name_of_source_collection</i>",
+ * 		"watermark" : "<i>increasing field, e.g. _id or created</i>",
+ * 		"match" : { <i>optional filter on the source</i> },
+ * 		"group" : { "_id" : "$shop_id", "total" : { "$sum" : "$amount" } },
+ * 		"interval" : 60000
+ * }
+ * </pre>
+ *
+ * Every interval only the documents with a watermark above the one of the
+ * previous run are grouped, and the groups are merged into the output
+ * collection "rollup.<i>name</i>". Only accumulators that can be merged are
+ * allowed: $sum, $min, $max, $addToSet, $push, $first and $last. The
+ * watermark of every rollup is kept in the "rollups" collection, so a
+ * restarted persistor continues where it stopped as long as the rollup is
+ * registered with the same definition. A changed definition starts over.
+ *
+ * Documents that arrive with a watermark below the one of the last run are
+ * not counted, so the watermark field has to increase on insert. The delta is
+ * sorted on the watermark before it is grouped, so $first and $last follow
+ * the order of insert.
+ *
+ * A run is recorded as pending in the state before it is merged, and every
+ * merged group stores the upper watermark of its run in "last_run". A merge
+ * skips the groups that already have its last_run, so a run that failed half
+ * way or was interrupted by a restart is merged again over the same range
+ * without counting a group twice.
+ *
+ * A rollup is served by mongo.async.aggregate with
+ *
+ * <pre>
+ * {
+ * 		"rollup" : "<i>name_of_rollup</i>",
+ * 		"query" : { <i>optional filter on the output</i> },
+ * 		"sort" : { <i>optional sort of the output</i> },
+ * 		"refresh" : <i>true to merge the latest documents first</i>
+ * }
+ * </pre>
+ *
+ * @author Bram Wiekens
+ */
+public class Rollups {
+
+	public static final String FIELD_NAME = "name";
+	public static final String FIELD_WATERMARK = "watermark";
+	public static final String FIELD_MATCH = "match";
+	public static final String FIELD_GROUP = "group";
+	public static final String FIELD_INTERVAL = "interval";
+	public static final String FIELD_ROLLUP = "rollup";
+	public static final String FIELD_REFRESH = "refresh";
+	public static final String FIELD_LAST_RUN = "last_run";
+
+	public static final String STATE_COLLECTION = "rollups";
+	public static final String OUTPUT_PREFIX = "rollup.";
+
+	public static final long DEFAULT_INTERVAL = 60000;
+
+	public static final int ERROR_NO_ROLLUP_CODE = 1012;
+	public static final String ERROR_NO_ROLLUP_MSG = "Rollup %s is not registered";
+	public static final String ERROR_ROLLUP_MSG = "A rollup needs a name, collection, watermark and group";
+	public static final String ERROR_ACCUMULATOR_MSG = "Field %s of the group cannot be merged incrementally";
+	public static final String ERROR_REPLACED_MSG = "Rollup %s has been replaced";
+
+	private static final String ID = "_id";
+	private static final String DEFINITION = "definition";
+	private static final String PENDING = "pending";
+
+	// The update operator that merges the result of each accumulator
+	private static final Map<String, String> MERGE_OPERATORS = new HashMap<String, String>();
+	static {
+		MERGE_OPERATORS.put("$sum", "$inc");
+		MERGE_OPERATORS.put("$min", "$min");
+		MERGE_OPERATORS.put("$max", "$max");
+		MERGE_OPERATORS.put("$addToSet", "$addToSet");
+		MERGE_OPERATORS.put("$push", "$push");
+		MERGE_OPERATORS.put("$first", "$setOnInsert");
+		MERGE_OPERATORS.put("$last", "$set");
+	}
+
+	private static class Rollup {
+		private final String name;
+		private final String collection;
+		private final String output;
+		private final String watermarkField;
+		private final Document match;
+		private final Document group;
+		private final Map<String, String> mergeOperators;
+		private final String definition;
+
+		private final List<Consumer<Throwable>> waiters = new ArrayList<Consumer<Throwable>>();
+		private Element watermark;
+		// The upper watermark of a run that may be partly merged
+		private Element pending;
+		private boolean refreshing = true;
+		private boolean refreshed;
+		private long timerId;
+
+		private Rollup(String name, String collection, String watermarkField,
+				Document match, Document group,
+				Map<String, String> mergeOperators, String definition) {
+			this.name = name;
+			this.collection = collection;
+			this.output = OUTPUT_PREFIX + name;
+			this.watermarkField = watermarkField;
+			this.match = match;
+			this.group = group;
+			this.mergeOperators = mergeOperators;
+			this.definition = definition;
+		}
+	}
+
+	private final Vertx vertx;
+	private final MongoDatabase mongodb;
+	private final Map<String, FieldSchema> schemas;
+	private final Consumer<String> onWrite;
+	private final Logger log;
+
+	private final Map<String, Rollup> rollups = new ConcurrentHashMap<String, Rollup>();
+
+	public Rollups(Vertx vertx, MongoDatabase mongodb,
+			Map<String, FieldSchema> schemas, Consumer<String> onWrite,
+			Logger log) {
+		this.vertx = vertx;
+		this.mongodb = mongodb;
+		this.schemas = schemas;
+		this.onWrite = onWrite;
+		this.log = log;
+	}
+
+	/**
+	 * Register a rollup, replacing an earlier one with the same name. The
+	 * earlier rollup stops writing and a refresh of it that is running is
+	 * finished first. The message is replied with the name of the output
+	 * collection once the watermark of an earlier run has been loaded.
+	 *
+	 * @param registerMessage
+	 *            contains the definition of the rollup
+	 */
+	public void register(Message<JsonObject> registerMessage) {
+		JsonObject definition = registerMessage.body();
+
+		Rollup rollup;
+		try {
+			rollup = createRollup(definition);
+		} catch (IllegalArgumentException e) {
+			registerMessage.fail(AsyncMongoPersistor.ERROR_QUERY_CODE,
+					e.getMessage());
+			return;
+		}
+
+		Rollup previous = rollups.put(rollup.name, rollup);
+
+		rollup.timerId = vertx.setPeriodic(
+				definition.getLong(FIELD_INTERVAL, DEFAULT_INTERVAL),
+				timerId -> refresh(rollup, null));
+
+		if (previous == null) {
+			load(rollup, registerMessage);
+		} else {
+			// The state and output may only be touched once a refresh of the
+			// replaced rollup has finished writing them
+			vertx.cancelTimer(previous.timerId);
+			whenIdle(previous, () -> load(rollup, registerMessage));
+		}
+	}
+
+	/**
+	 * Load the watermark of an earlier run, or clear the output when it was
+	 * written by another definition, and start refreshing
+	 */
+	private void load(Rollup rollup, Message<JsonObject> registerMessage) {
+		MongoCollection state = mongodb.getCollection(STATE_COLLECTION);
+		state.findOneAsync((error, stored) -> {
+			if (isReplaced(rollup)) {
+				finish(rollup, null);
+
+				registerMessage.fail(-1,
+						String.format(ERROR_REPLACED_MSG, rollup.name));
+				return;
+			} else if (error != null) {
+				// Without the stored watermark groups would be counted twice
+				rollups.remove(rollup.name, rollup);
+				vertx.cancelTimer(rollup.timerId);
+				finish(rollup, error);
+
+				registerMessage.fail(-1, error.getMessage());
+				return;
+			}
+
+			if (stored != null && isSameDefinition(rollup, stored)) {
+				rollup.watermark = stored.get(FIELD_WATERMARK);
+				rollup.pending = stored.get(PENDING);
+				start(rollup);
+			} else {
+				// Start over, the stored groups belong to another definition
+				mongodb.getCollection(rollup.output).deleteAsync(
+						(deleteError, deleted) -> {
+							if (deleteError != null) {
+								log.error("Clearing rollup " + rollup.name
+										+ " failed: " + deleteError.getMessage());
+							}
+							start(rollup);
+						}, BuilderFactory.start());
+			}
+
+			registerMessage.reply(new JsonObject().putString(FIELD_NAME,
+					rollup.name).putString("output", rollup.output));
+		}, createStateQuery(rollup));
+	}
+
+	/**
+	 * Reply the materialized groups of a rollup
+	 *
+	 * @param aggregationMessage
+	 *            contains the name of the rollup
+	 */
+	public void serve(Message<JsonObject> aggregationMessage) {
+		JsonObject aggregationQuery = aggregationMessage.body();
+		String name = aggregationQuery.getString(FIELD_ROLLUP);
+
+		Rollup rollup = rollups.get(name);
+		if (rollup == null) {
+			aggregationMessage.fail(ERROR_NO_ROLLUP_CODE,
+					String.format(ERROR_NO_ROLLUP_MSG, name));
+			return;
+		}
+
+		if (aggregationQuery.getBoolean(FIELD_REFRESH, false)
+				|| !rollup.refreshed) {
+			refresh(rollup, error -> {
+				if (error != null) {
+					aggregationMessage.fail(-1, error.getMessage());
+				} else {
+					replyOutput(aggregationMessage, rollup);
+				}
+			});
+		} else {
+			replyOutput(aggregationMessage, rollup);
+		}
+	}
+
+	private void replyOutput(Message<JsonObject> aggregationMessage,
+			Rollup rollup) {
+		JsonObject aggregationQuery = aggregationMessage.body();
+
+		JsonObject queryDoc = aggregationQuery.getObject("query");
+		Find.Builder query = new Find.Builder(queryDoc == null ? BuilderFactory
+				.start() : MongoBsonEncoder.encode(queryDoc));
+
+		JsonObject sort = aggregationQuery.getObject(AsyncMongoPersistor.QUERY_SORT);
+		if (sort != null) {
+			query.sort(MongoBsonEncoder.encode(sort));
+		}
+
+		String replyFormat = aggregationQuery.getString(
+				AsyncMongoPersistor.QUERY_REPLY_FORMAT,
+				AsyncMongoPersistor.REPLY_FORMAT_JSON);
+
+		mongodb.getCollection(rollup.output).stream(
+				new ResultCollector((error, results) -> {
+					if (error != null) {
+						aggregationMessage.fail(-1, error.getMessage());
+					} else {
+						aggregationMessage.reply(AsyncMongoPersistor
+								.createFindReply(results, replyFormat));
+					}
+				}), query.build());
+	}
+
+	/**
+	 * @return true if another rollup has been registered with the same name,
+	 *         a replaced rollup may no longer write its output or state
+	 */
+	private boolean isReplaced(Rollup rollup) {
+		return rollups.get(rollup.name) != rollup;
+	}
+
+	/**
+	 * Run next once the rollup is not loading or refreshing. A replaced
+	 * rollup does not start a new refresh, so it stays idle after that.
+	 */
+	private void whenIdle(Rollup rollup, Runnable next) {
+		synchronized (rollup) {
+			if (rollup.refreshing) {
+				rollup.waiters.add(error -> next.run());
+				return;
+			}
+		}
+
+		next.run();
+	}
+
+	/**
+	 * Start refreshing a rollup once its watermark has been loaded
+	 */
+	private void start(Rollup rollup) {
+		synchronized (rollup) {
+			rollup.refreshing = false;
+		}
+
+		refresh(rollup, null);
+	}
+
+	/**
+	 * Merge the documents above the watermark into the output. A refresh that
+	 * is requested while another one runs waits for that one.
+	 *
+	 * @param rollup
+	 *            is the rollup to refresh
+	 * @param done
+	 *            is called when the refresh has finished, may be null
+	 */
+	private void refresh(Rollup rollup, Consumer<Throwable> done) {
+		synchronized (rollup) {
+			if (done != null) {
+				rollup.waiters.add(done);
+			}
+			if (rollup.refreshing) {
+				return;
+			}
+			rollup.refreshing = true;
+		}
+
+		if (isReplaced(rollup)) {
+			finish(rollup, new IllegalStateException(String.format(
+					ERROR_REPLACED_MSG, rollup.name)));
+			return;
+		}
+
+		if (rollup.pending != null) {
+			// Merge the unfinished run again before the next one
+			mergeDelta(rollup, rollup.pending);
+			return;
+		}
+
+		MongoCollection source = mongodb.getCollection(rollup.collection);
+
+		// The newest watermark now is the upper bound of this run, documents
+		// inserted while it runs are left for the next one
+		Find newest = new Find.Builder(BuilderFactory.start())
+				.sort(BuilderFactory.start().addInteger(rollup.watermarkField,
+						-1))
+				.projection(
+						BuilderFactory.start().addInteger(
+								rollup.watermarkField, 1))
+				.build();
+
+		source.findOneAsync((error, doc) -> {
+			Element upper = doc == null ? null : doc.get(rollup.watermarkField);
+
+			if (error != null || upper == null
+					|| upper.withName(FIELD_WATERMARK).equals(rollup.watermark)) {
+				finish(rollup, error);
+			} else {
+				savePending(rollup, upper);
+			}
+		}, newest);
+	}
+
+	/**
+	 * Record the run before anything is merged, so it is merged again after
+	 * a failure or a restart
+	 */
+	private void savePending(Rollup rollup, Element upper) {
+		if (isReplaced(rollup)) {
+			finish(rollup, new IllegalStateException(String.format(
+					ERROR_REPLACED_MSG, rollup.name)));
+			return;
+		}
+
+		DocumentBuilder update = BuilderFactory.start();
+		update.push("$set").add(upper.withName(PENDING))
+				.addString(DEFINITION, rollup.definition);
+
+		mongodb.getCollection(STATE_COLLECTION).updateAsync(
+				(error, results) -> {
+					if (error != null) {
+						finish(rollup, error);
+					} else {
+						rollup.pending = upper.withName(PENDING);
+						mergeDelta(rollup, upper);
+					}
+				}, createStateQuery(rollup), update, false, true);
+	}
+
+	/**
+	 * Group the documents above the watermark and up to upper and merge them
+	 */
+	private void mergeDelta(Rollup rollup, Element upper) {
+		// Sorted, so $first and $last are the first and last inserted
+		Aggregate delta = Aggregate.builder()
+				.match(createDeltaMatch(rollup, upper))
+				.step("$sort", BuilderFactory.start().addInteger(
+						rollup.watermarkField, 1))
+				.group(rollup.group).build();
+
+		mongodb.getCollection(rollup.collection).stream(
+				new ResultCollector((streamError, groups) -> {
+					if (streamError != null) {
+						finish(rollup, streamError);
+					} else {
+						merge(rollup, groups, upper);
+					}
+				}), delta);
+	}
+
+	private void merge(Rollup rollup, List<Document> groups, Element upper) {
+		if (isReplaced(rollup)) {
+			finish(rollup, new IllegalStateException(String.format(
+					ERROR_REPLACED_MSG, rollup.name)));
+			return;
+		} else if (groups.isEmpty()) {
+			saveWatermark(rollup, upper);
+			return;
+		}
+
+		BatchedWrite.Builder write = BatchedWrite.builder().mode(
+				BatchedWriteMode.REORDERED);
+
+		for (Document group : groups) {
+			// A group that already has this run is not merged again, its
+			// upsert fails on the duplicate _id instead
+			DocumentBuilder query = BuilderFactory.start().add(group.get(ID));
+			query.push(FIELD_LAST_RUN).push("$not")
+					.add(upper.withName("$gte"));
+
+			write.write(new UpdateOperation(query.build(), createMerge(rollup,
+					group, upper), false, true));
+		}
+
+		mongodb.getCollection(rollup.output).writeAsync((error, results) -> {
+			if (error != null && !isMergedBefore(error)) {
+				// The run stays pending, so the next refresh merges the same
+				// delta again
+				finish(rollup, error);
+			} else {
+				onWrite.accept(rollup.output);
+				saveWatermark(rollup, upper);
+			}
+		}, write.build());
+	}
+
+	private void saveWatermark(Rollup rollup, Element upper) {
+		if (isReplaced(rollup)) {
+			// The merged groups are cleared by the new rollup
+			finish(rollup, new IllegalStateException(String.format(
+					ERROR_REPLACED_MSG, rollup.name)));
+			return;
+		}
+
+		DocumentBuilder update = BuilderFactory.start();
+		update.push("$set").add(upper.withName(FIELD_WATERMARK))
+				.addString(DEFINITION, rollup.definition);
+		update.push("$unset").addInteger(PENDING, 1);
+
+		mongodb.getCollection(STATE_COLLECTION).updateAsync(
+				(error, results) -> {
+					if (error == null) {
+						rollup.watermark = upper.withName(FIELD_WATERMARK);
+						rollup.pending = null;
+					}
+					finish(rollup, error);
+				}, createStateQuery(rollup), update, false, true);
+	}
+
+	private static Document createStateQuery(Rollup rollup) {
+		return BuilderFactory.start().addString(ID, rollup.name).build();
+	}
+
+	/**
+	 * @return true if the only errors of a merge are groups that were merged
+	 *         by an earlier attempt of the same run
+	 */
+	private static boolean isMergedBefore(Throwable error) {
+		if (!(error instanceof BatchedWriteException)) {
+			return false;
+		}
+
+		BatchedWriteException batchError = (BatchedWriteException) error;
+		if (!batchError.getSkipped().isEmpty()) {
+			return false;
+		}
+
+		for (Throwable groupError : batchError.getErrors().values()) {
+			if (!(groupError instanceof DuplicateKeyException)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void finish(Rollup rollup, Throwable error) {
+		List<Consumer<Throwable>> waiters;
+
+		synchronized (rollup) {
+			waiters = new ArrayList<Consumer<Throwable>>(rollup.waiters);
+			rollup.waiters.clear();
+			rollup.refreshing = false;
+
+			if (error == null) {
+				rollup.refreshed = true;
+			}
+		}
+
+		if (error != null) {
+			log.error("Refresh of rollup " + rollup.name + " failed: "
+					+ error.getMessage());
+		}
+
+		for (Consumer<Throwable> waiter : waiters) {
+			waiter.accept(error);
+		}
+	}
+
+	/**
+	 * Select the documents above the last and up to the new watermark
+	 */
+	private static Document createDeltaMatch(Rollup rollup, Element upper) {
+		DocumentBuilder range = BuilderFactory.start();
+
+		DocumentBuilder bounds = range.push(rollup.watermarkField);
+		if (rollup.watermark != null) {
+			bounds.add(rollup.watermark.withName("$gt"));
+		}
+		bounds.add(upper.withName("$lte"));
+
+		if (rollup.match == null) {
+			return range.build();
+		}
+
+		DocumentBuilder match = BuilderFactory.start();
+		ArrayBuilder and = match.pushArray("$and");
+		and.addDocument(rollup.match);
+		and.addDocument(range);
+
+		return match.build();
+	}
+
+	/**
+	 * Create the update that merges the group of a run into the stored group
+	 * and marks it with the upper watermark of the run
+	 */
+	private static Document createMerge(Rollup rollup, Document group,
+			Element upper) {
+		DocumentBuilder update = BuilderFactory.start();
+		Map<String, DocumentBuilder> operators = new LinkedHashMap<String, DocumentBuilder>();
+
+		for (Element element : group) {
+			String operator = rollup.mergeOperators.get(element.getName());
+			if (operator == null) {
+				continue;
+			}
+
+			DocumentBuilder fields = operators.get(operator);
+			if (fields == null) {
+				fields = update.push(operator);
+				operators.put(operator, fields);
+			}
+
+			if (operator.equals("$addToSet") || operator.equals("$push")) {
+				fields.push(element.getName()).add(element.withName("$each"));
+			} else {
+				fields.add(element);
+			}
+		}
+
+		DocumentBuilder set = operators.get("$set");
+		if (set == null) {
+			set = update.push("$set");
+		}
+		set.add(upper.withName(FIELD_LAST_RUN));
+
+		return update.build();
+	}
+
+	private Rollup createRollup(JsonObject definition) {
+		String name = definition.getString(FIELD_NAME);
+		String collection = definition.getString("collection");
+		String watermarkField = definition.getString(FIELD_WATERMARK);
+		JsonObject group = definition.getObject(FIELD_GROUP);
+
+		if (name == null || collection == null || watermarkField == null
+				|| group == null || !group.containsField(ID)) {
+			throw new IllegalArgumentException(ERROR_ROLLUP_MSG);
+		}
+
+		Map<String, String> mergeOperators = new HashMap<String, String>();
+		for (String field : group.getFieldNames()) {
+			if (field.equals(ID)) {
+				continue;
+			}
+
+			JsonObject accumulator = group.getObject(field);
+			String operator = accumulator == null || accumulator.size() != 1 ? null
+					: MERGE_OPERATORS.get(accumulator.getFieldNames()
+							.iterator().next());
+
+			if (operator == null) {
+				throw new IllegalArgumentException(String.format(
+						ERROR_ACCUMULATOR_MSG, field));
+			}
+			mergeOperators.put(field, operator);
+		}
+
+		FieldSchema schema = schemas.get(collection);
+		JsonObject match = definition.getObject(FIELD_MATCH);
+
+		JsonObject stored = definition.copy();
+		stored.removeField(FIELD_INTERVAL);
+
+		return new Rollup(name, collection, watermarkField, match == null ? null
+				: MongoBsonEncoder.encode(match, schema),
+				MongoBsonEncoder.encode(group, schema), mergeOperators,
+				stored.encode());
+	}
+
+	private static boolean isSameDefinition(Rollup rollup, Document stored) {
+		Element definition = stored.get(DEFINITION);
+
+		return definition instanceof StringElement
+				&& ((StringElement) definition).getValue().equals(
+						rollup.definition);
+	}
+}
@@ -0,0 +1,300 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import eu.socie.mongo_async_persistor.AsyncGridFs.Upload;
+import eu.socie.mongo_async_persistor.util.MongoFileUtil;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Keeps GridFS uploads open between requests, so a file can be stored in
+ * parts instead of one event bus Buffer. An upload is opened with
+ *
+ * <pre>
+ * {
+ * 		"filename" : "<i>name of the file</i>",
+ * 		"content_type" : "<i>content type of the file</i>",
+ * 		"length" : <i>optional length of the file</i>
+ * }
+ * </pre>
+ *
+ * which replies the upload_id and the chunk_size. The parts are sent as a
+ * Buffer created with {@link MongoFileUtil#createUploadBuffer}, every part is
+ * replied with the number of bytes received once its chunks are written. A
+ * part with an offset before the end is a retry and only its new bytes are
+ * appended, so a client that lost a reply can resend from the received
+ * length. Commit inserts the file and replies its _id, length and md5, abort
+ * removes the chunks that were written.
+ *
+ * Uploads that are not used for longer than the idle timeout are aborted.
+ * Uploads only live in this verticle, they do not survive a restart.
+ *
+ * @author Bram Wiekens
+ */
+public class UploadSessions {
+
+	public static final String FIELD_UPLOAD_ID = "upload_id";
+	public static final String FIELD_FILENAME = "filename";
+	public static final String FIELD_CONTENT_TYPE = "content_type";
+	public static final String FIELD_LENGTH = "length";
+
+	public static final int ERROR_NO_UPLOAD_CODE = 1013;
+	public static final int ERROR_UPLOAD_CODE = 1014;
+	public static final int ERROR_TOO_MANY_UPLOADS_CODE = 1015;
+
+	public static final String ERROR_NO_UPLOAD_MSG = "Upload %s does not exist or has timed out";
+	public static final String ERROR_TOO_MANY_UPLOADS_MSG = "Too many open uploads, the maximum is %d";
+	public static final String ERROR_NO_FILENAME_MSG = "The upload contains no filename";
+	public static final String ERROR_NO_UPLOAD_ID_MSG = "The part contains no upload id";
+
+	public static final long DEFAULT_TIMEOUT = 300000;
+	public static final int DEFAULT_MAX_UPLOADS = 100;
+
+	private static final long MIN_SWEEP_INTERVAL = 1000;
+
+	// Only touched on the context of the verticle
+	private final Map<String, Session> uploads = new HashMap<String, Session>();
+
+	private final AsyncGridFs gridFs;
+	private final Context context;
+	private final long timeout;
+	private final int maxUploads;
+
+	private static class Session {
+		private final Upload upload;
+		private long lastUsed;
+
+		private Session(Upload upload) {
+			this.upload = upload;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Create a registry that aborts idle uploads
+	 *
+	 * @param vertx
+	 *            is used to periodically abort idle uploads, it has to be
+	 *            created from the context of the verticle
+	 * @param gridFs
+	 *            is where the files are stored
+	 * @param timeout
+	 *            is the idle time in milliseconds after which an upload is
+	 *            aborted
+	 * @param maxUploads
+	 *            is the maximum number of uploads that can be open at once
+	 */
+	public UploadSessions(Vertx vertx, AsyncGridFs gridFs, long timeout,
+			int maxUploads) {
+		this.gridFs = gridFs;
+		this.context = vertx.currentContext();
+		this.timeout = timeout;
+		this.maxUploads = maxUploads;
+
+		vertx.setPeriodic(Math.max(timeout / 2, MIN_SWEEP_INTERVAL),
+				timerId -> abortIdle());
+	}
+
+	/**
+	 * Open an upload
+	 *
+	 * @param openMessage
+	 *            contains the filename, content_type and optional length
+	 */
+	public void open(Message<JsonObject> openMessage) {
+		JsonObject request = openMessage.body();
+		String fileName = request.getString(FIELD_FILENAME);
+
+		if (fileName == null) {
+			openMessage.fail(AsyncMongoPersistor.ERROR_QUERY_CODE,
+					ERROR_NO_FILENAME_MSG);
+			return;
+		} else if (uploads.size() >= maxUploads) {
+			openMessage.fail(ERROR_TOO_MANY_UPLOADS_CODE,
+					String.format(ERROR_TOO_MANY_UPLOADS_MSG, maxUploads));
+			return;
+		}
+
+		Upload upload;
+		try {
+			upload = gridFs.openUpload(fileName,
+					request.getString(FIELD_CONTENT_TYPE, ""),
+					request.getLong(FIELD_LENGTH, -1), context);
+		} catch (IOException e) {
+			openMessage.fail(ERROR_UPLOAD_CODE, e.getMessage());
+			return;
+		}
+
+		String uploadId = upload.getId().toHexString();
+		uploads.put(uploadId, new Session(upload));
+
+		JsonObject reply = new JsonObject();
+		reply.putString(FIELD_UPLOAD_ID, uploadId);
+		reply.putNumber("chunk_size", gridFs.getChunkSize());
+
+		openMessage.reply(reply);
+	}
+
+	/**
+	 * Append a part to an upload
+	 *
+	 * @param appendMessage
+	 *            is a Buffer with the upload id, the offset and the part
+	 */
+	public void append(Message<Buffer> appendMessage) {
+		Buffer buffer = appendMessage.body();
+
+		if (buffer == null
+				|| buffer.length() < MongoFileUtil.UPLOAD_HEADER_LENGTH) {
+			appendMessage.fail(ERROR_UPLOAD_CODE, ERROR_NO_UPLOAD_ID_MSG);
+			return;
+		}
+
+		String uploadId = MongoFileUtil.getUploadIdFromBuffer(buffer);
+		Session session = get(uploadId, appendMessage);
+		if (session == null) {
+			return;
+		}
+
+		session.upload.append(
+				MongoFileUtil.getUploadContentsFromBuffer(buffer),
+				MongoFileUtil.getUploadOffsetFromBuffer(buffer),
+				(error, received) -> {
+					session.lastUsed = System.currentTimeMillis();
+
+					if (error != null) {
+						appendMessage.fail(ERROR_UPLOAD_CODE,
+								error.getMessage());
+					} else {
+						JsonObject reply = new JsonObject();
+						reply.putString(FIELD_UPLOAD_ID, uploadId);
+						reply.putNumber("received", received);
+
+						appendMessage.reply(reply);
+					}
+				});
+	}
+
+	/**
+	 * Store the file of an upload. An upload that is not complete stays
+	 * open, so the missing parts can still be appended.
+	 *
+	 * @param commitMessage
+	 *            contains the upload_id
+	 */
+	public void commit(Message<JsonObject> commitMessage) {
+		String uploadId = commitMessage.body().getString(FIELD_UPLOAD_ID);
+		Session session = get(uploadId, commitMessage);
+		if (session == null) {
+			return;
+		}
+
+		Upload upload = session.upload;
+		upload.commit((error, md5) -> {
+			// A commit that was refused leaves the upload open
+			if (error == null || upload.isClosed()) {
+				uploads.remove(uploadId);
+			}
+
+			if (error != null) {
+				commitMessage.fail(ERROR_UPLOAD_CODE, error.getMessage());
+			} else {
+				JsonObject reply = new JsonObject();
+				reply.putString("_id", uploadId);
+				reply.putNumber(FIELD_LENGTH, upload.getLength());
+				reply.putString("md5", md5);
+
+				commitMessage.reply(reply);
+			}
+		});
+	}
+
+	/**
+	 * Abort an upload and remove its chunks
+	 *
+	 * @param abortMessage
+	 *            contains the upload_id
+	 */
+	public void abort(Message<JsonObject> abortMessage) {
+		String uploadId = abortMessage.body().getString(FIELD_UPLOAD_ID);
+		Session session = uploadId == null ? null : uploads.remove(uploadId);
+
+		JsonObject reply = new JsonObject();
+		reply.putString(FIELD_UPLOAD_ID, uploadId);
+
+		if (session == null) {
+			reply.putBoolean("aborted", false);
+			abortMessage.reply(reply);
+			return;
+		}
+
+		session.upload.abort((error, deleted) -> {
+			if (error != null) {
+				abortMessage.fail(ERROR_UPLOAD_CODE, error.getMessage());
+			} else {
+				reply.putBoolean("aborted", true);
+				abortMessage.reply(reply);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of open uploads
+	 */
+	public int size() {
+		return uploads.size();
+	}
+
+	private Session get(String uploadId, Message<?> message) {
+		Session session = uploadId == null ? null : uploads.get(uploadId);
+
+		if (session == null) {
+			message.fail(ERROR_NO_UPLOAD_CODE,
+					String.format(ERROR_NO_UPLOAD_MSG, uploadId));
+		} else {
+			session.lastUsed = System.currentTimeMillis();
+		}
+
+		return session;
+	}
+
+	private void abortIdle() {
+		long idleSince = System.currentTimeMillis() - timeout;
+
+		Iterator<Session> it = uploads.values().iterator();
+		while (it.hasNext()) {
+			Session session = it.next();
+
+			if (session.lastUsed < idleSince) {
+				it.remove();
+				session.upload.abort((error, deleted) -> {
+				});
+			}
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoDatabase;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.element.ObjectId;
+import com.allanbank.mongodb.builder.BatchedWrite;
+import com.allanbank.mongodb.builder.BatchedWriteMode;
+import com.allanbank.mongodb.builder.write.InsertOperation;
+import com.allanbank.mongodb.builder.write.UpdateOperation;
+import com.allanbank.mongodb.builder.write.WriteOperation;
+import com.allanbank.mongodb.error.BatchedWriteException;
+
+import eu.socie.mongo_async_persistor.util.FieldSchema;
+import eu.socie.mongo_async_persistor.util.MongoBsonEncoder;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Write-behind mode of mongo.async.create. Saves are collected per collection
+ * and written as one batched write when a collection holds max_batch saves or
+ * when the first save of the batch has waited for linger milliseconds. It is
+ * enabled in the module config:
+ *
+ * <pre>
+ * "write_behind" : {
+ * 		"max_batch" : 500,
+ * 		"linger" : 5,
+ * 		"max_pending" : 10000
+ * }
+ * </pre>
+ *
+ * Saves are refused while max_pending saves are buffered or being written, so
+ * a slow database cannot make the buffer grow without bound.
+ *
+ * Every save is replied like a direct save, with its own result_id, once the
+ * batch it is part of has been written. A document with an _id replaces the
+ * stored document or is inserted, just like a direct save. The saves of a
+ * batch are written in order and a failing save does not stop the others.
+ * Batches use the write concern of their collection, a write_concern in a
+ * single save is ignored.
+ *
+ * @author Bram Wiekens
+ */
+public class WriteBehindBuffer {
+
+	public static final String CONFIG_MAX_BATCH = "max_batch";
+	public static final String CONFIG_LINGER = "linger";
+	public static final String CONFIG_MAX_PENDING = "max_pending";
+
+	public static final int ERROR_BUFFER_FULL_CODE = 1011;
+	public static final String ERROR_BUFFER_FULL_MSG = "Write-behind buffer is full, %d saves are pending";
+
+	public static final int DEFAULT_MAX_BATCH = 500;
+	public static final long DEFAULT_LINGER = 5;
+	public static final int DEFAULT_MAX_PENDING = 10000;
+
+	private static final String ID = "_id";
+
+	private static class Save {
+		private final Message<JsonObject> message;
+		private final String id;
+
+		private Save(Message<JsonObject> message, String id) {
+			this.message = message;
+			this.id = id;
+		}
+	}
+
+	private static class Batch {
+		private final List<Save> saves = new ArrayList<Save>();
+		private final Map<WriteOperation, Save> operations = new IdentityHashMap<WriteOperation, Save>();
+		private final BatchedWrite.Builder write = BatchedWrite.builder().mode(
+				BatchedWriteMode.SERIALIZE_AND_CONTINUE);
+		private final long started = System.currentTimeMillis();
+		private long timerId = -1;
+	}
+
+	private final Vertx vertx;
+	private final MongoDatabase mongodb;
+	private final Map<String, FieldSchema> schemas;
+	private final WriteConcerns writeConcerns;
+	private final Consumer<String> onWrite;
+
+	private final int maxBatch;
+	private final long linger;
+	private final int maxPending;
+
+	// Only touched on the event loop of the verticle
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+	private int buffered;
+
+	private final AtomicLong inFlight = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	public WriteBehindBuffer(Vertx vertx, MongoDatabase mongodb,
+			Map<String, FieldSchema> schemas, WriteConcerns writeConcerns,
+			Consumer<String> onWrite, JsonObject config) {
+		this.vertx = vertx;
+		this.mongodb = mongodb;
+		this.schemas = schemas;
+		this.writeConcerns = writeConcerns;
+		this.onWrite = onWrite;
+
+		maxBatch = Math.max(1,
+				config.getInteger(CONFIG_MAX_BATCH, DEFAULT_MAX_BATCH));
+		linger = Math.max(1, config.getLong(CONFIG_LINGER, DEFAULT_LINGER));
+		maxPending = config.getInteger(CONFIG_MAX_PENDING, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Add a save to the batch of its collection
+	 *
+	 * @param collectionName
+	 *            is the name of the collection
+	 * @param saveDoc
+	 *            is the document to save
+	 * @param saveMessage
+	 *            is replied when the batch has been written
+	 */
+	public void save(String collectionName, JsonObject saveDoc,
+			Message<JsonObject> saveMessage) {
+		long pending = buffered + inFlight.get();
+		if (pending >= maxPending) {
+			rejected.incrementAndGet();
+			saveMessage.fail(ERROR_BUFFER_FULL_CODE,
+					String.format(ERROR_BUFFER_FULL_MSG, pending));
+			return;
+		}
+
+		Document doc = MongoBsonEncoder.encode(saveDoc,
+				schemas.get(collectionName));
+
+		Batch batch = batches.get(collectionName);
+		if (batch == null) {
+			Batch created = new Batch();
+			created.timerId = vertx.setTimer(linger,
+					timerId -> flush(collectionName, created));
+
+			batches.put(collectionName, created);
+			batch = created;
+		}
+
+		WriteOperation operation;
+		Element idElement = doc.get(ID);
+		String id;
+
+		if (idElement == null) {
+			ObjectId objectId = new ObjectId();
+			id = objectId.toHexString();
+			operation = new InsertOperation(BatchWriter.withId(doc, objectId));
+		} else {
+			Object value = saveDoc.getValue(ID);
+			id = value instanceof JsonObject ? ((JsonObject) value).encode()
+					: String.valueOf(value);
+
+			Document query = BuilderFactory.start().add(idElement).build();
+			operation = new UpdateOperation(query, doc, false, true);
+		}
+
+		Save save = new Save(saveMessage, id);
+		batch.saves.add(save);
+		batch.operations.put(operation, save);
+		batch.write.write(operation);
+		buffered++;
+
+		if (batch.saves.size() >= maxBatch) {
+			vertx.cancelTimer(batch.timerId);
+			flush(collectionName, batch);
+		}
+	}
+
+	/**
+	 * @return the number of buffered, unacknowledged and refused saves, the
+	 *         number of flushes and the flush latency in milliseconds from
+	 *         the first save of a batch to its acknowledgement
+	 */
+	public JsonObject stats() {
+		long flushCount = flushes.get();
+
+		JsonObject stats = new JsonObject();
+		stats.putNumber("buffered", buffered);
+		stats.putNumber("collections", batches.size());
+		stats.putNumber("in_flight", inFlight.get());
+		stats.putNumber("flushes", flushCount);
+		stats.putNumber("written", written.get());
+		stats.putNumber("errors", errors.get());
+		stats.putNumber("rejected", rejected.get());
+		stats.putNumber("max_batch", maxBatch);
+		stats.putNumber("linger", linger);
+		stats.putNumber("max_pending", maxPending);
+		stats.putNumber("avg_flush_latency", flushCount == 0 ? 0.0
+				: (double) totalLatency.get() / flushCount);
+		stats.putNumber("max_flush_latency", maxLatency.get());
+
+		return stats;
+	}
+
+	private void flush(String collectionName, Batch batch) {
+		// The timer of a batch that was flushed for its size may still fire
+		if (batches.get(collectionName) != batch) {
+			return;
+		}
+
+		batches.remove(collectionName);
+		buffered -= batch.saves.size();
+		inFlight.addAndGet(batch.saves.size());
+
+		Durability durability = writeConcerns.get(collectionName);
+		if (durability != null) {
+			batch.write.durability(durability);
+		}
+
+		MongoCollection collection = mongodb.getCollection(collectionName);
+
+		collection.writeAsync((error, results) -> {
+			inFlight.addAndGet(-batch.saves.size());
+			recordLatency(batch);
+
+			if (error != null && !(error instanceof BatchedWriteException)) {
+				errors.addAndGet(batch.saves.size());
+
+				for (Save save : batch.saves) {
+					save.message.fail(-1, error.getMessage());
+				}
+				return;
+			}
+
+			onWrite.accept(collectionName);
+
+			Map<Save, String> failed = new IdentityHashMap<Save, String>();
+			if (error != null) {
+				BatchedWriteException batchError = (BatchedWriteException) error;
+
+				for (Map.Entry<WriteOperation, Throwable> entry : batchError
+						.getErrors().entrySet()) {
+					failed.put(batch.operations.get(entry.getKey()), entry
+							.getValue().getMessage());
+				}
+				for (WriteOperation skipped : batchError.getSkipped()) {
+					failed.putIfAbsent(batch.operations.get(skipped),
+							BatchWriter.ERROR_SKIPPED_MSG);
+				}
+			}
+
+			for (Save save : batch.saves) {
+				String failure = failed.get(save);
+
+				if (failure != null) {
+					errors.incrementAndGet();
+					save.message.fail(-1, failure);
+				} else {
+					written.incrementAndGet();
+
+					JsonObject obj = new JsonObject();
+					obj.putNumber("query_result", 1);
+					obj.putString("result_id", save.id);
+
+					save.message.reply(obj);
+				}
+			}
+		}, batch.write.build());
+	}
+
+	private void recordLatency(Batch batch) {
+		long latency = System.currentTimeMillis() - batch.started;
+
+		flushes.incrementAndGet();
+		totalLatency.addAndGet(latency);
+		maxLatency.accumulateAndGet(latency, Math::max);
+	}
+}
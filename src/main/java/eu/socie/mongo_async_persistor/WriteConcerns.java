@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.Durability;
+
+/**
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Selects the write concern of a write. A write request may contain a
+ * write_concern, otherwise the write concern of the collection or the module
+ * is used, both can be set in the module config:
+ *
+ * <pre>
+ * "write_concern" : "acknowledged",
+ * "collection_write_concerns" : {
+ * 		"telemetry" : "unacknowledged",
+ * 		"billing" : { "w" : "majority", "j" : true, "wtimeout" : 5000 }
+ * }
+ * </pre>
+ *
+ * A write concern is one of unacknowledged, acknowledged, journaled, fsync or
+ * majority, or an object with the w, j and wtimeout fields of MongoDB. When
+ * no write concern is set the default durability of the client is used. As in
+ * MongoDB the wtimeout only applies to replicated and journaled writes, it is
+ * ignored for a w of 0 or 1 without j.
+ *
+ * @see <a href="http://docs.mongodb.org/manual/core/write-concern/">MongoDB
+ *      write concerns</a>
+ * @author Bram Wiekens
+ */
+public class WriteConcerns {
+
+	public static final String CONFIG_WRITE_CONCERN = "write_concern";
+	public static final String CONFIG_COLLECTION_WRITE_CONCERNS = "collection_write_concerns";
+
+	public static final String QUERY_WRITE_CONCERN = "write_concern";
+
+	public static final String UNACKNOWLEDGED = "unacknowledged";
+	public static final String ACKNOWLEDGED = "acknowledged";
+	public static final String JOURNALED = "journaled";
+	public static final String FSYNC = "fsync";
+	public static final String MAJORITY = "majority";
+
+	public static final String ERROR_WRITE_CONCERN_MSG = "Unknown write concern %s";
+
+	private final Durability defaultDurability;
+	private final Map<String, Durability> collections = new HashMap<String, Durability>();
+
+	/**
+	 * @param config
+	 *            is the module config
+	 * @throws IllegalArgumentException
+	 *             if a write concern is not valid
+	 */
+	public WriteConcerns(JsonObject config) {
+		defaultDurability = parse(config.getValue(CONFIG_WRITE_CONCERN));
+
+		JsonObject perCollection = config
+				.getObject(CONFIG_COLLECTION_WRITE_CONCERNS);
+		if (perCollection != null) {
+			for (String collection : perCollection.getFieldNames()) {
+				collections.put(collection,
+						parse(perCollection.getValue(collection)));
+			}
+		}
+	}
+
+	/**
+	 * Get the durability of a write
+	 *
+	 * @param collection
+	 *            is the name of the collection
+	 * @param request
+	 *            is the write request, it may contain a write_concern
+	 * @return the durability or null for the default of the client
+	 * @throws IllegalArgumentException
+	 *             if the write concern of the request is not valid
+	 */
+	public Durability get(String collection, JsonObject request) {
+		Durability durability = parse(request.getValue(QUERY_WRITE_CONCERN));
+
+		if (durability == null) {
+			durability = get(collection);
+		}
+
+		return durability;
+	}
+
+	/**
+	 * @param collection
+	 *            is the name of the collection
+	 * @return the durability of the collection or null for the default of the
+	 *         client
+	 */
+	public Durability get(String collection) {
+		Durability durability = collections.get(collection);
+
+		return durability == null ? defaultDurability : durability;
+	}
+
+	/**
+	 * @param durability
+	 *            is the durability of a write, may be null
+	 * @return true if the write waits for a reply of the server
+	 */
+	public static boolean isAcknowledged(Durability durability) {
+		return !Durability.NONE.equals(durability);
+	}
+
+	/**
+	 * Parse a write concern
+	 *
+	 * @param value
+	 *            is the name of a write concern or an object with w, j and
+	 *            wtimeout, may be null. The wtimeout is ignored for a w of 0
+	 *            or 1 without j.
+	 * @return the durability or null if value is null
+	 * @throws IllegalArgumentException
+	 *             if the write concern is not valid
+	 */
+	public static Durability parse(Object value) {
+		if (value == null) {
+			return null;
+		}
+
+		if (value instanceof JsonObject) {
+			return parse((JsonObject) value);
+		}
+
+		switch (String.valueOf(value)) {
+		case UNACKNOWLEDGED:
+			return Durability.NONE;
+		case ACKNOWLEDGED:
+			return Durability.ACK;
+		case JOURNALED:
+			return Durability.JOURNAL_DURABLE;
+		case FSYNC:
+			return Durability.FSYNC_DURABLE;
+		case MAJORITY:
+			return Durability.replicaDurable(false, MAJORITY, 0);
+		default:
+			throw new IllegalArgumentException(String.format(
+					ERROR_WRITE_CONCERN_MSG, value));
+		}
+	}
+
+	private static Durability parse(JsonObject concern) {
+		Object w = concern.getValue("w");
+		boolean journal = concern.getBoolean("j", false);
+		int timeout = concern.getInteger("wtimeout", 0);
+
+		if (w == null || w instanceof Number) {
+			int replicas = w == null ? 1 : ((Number) w).intValue();
+
+			if (replicas < 0) {
+				throw new IllegalArgumentException(String.format(
+						ERROR_WRITE_CONCERN_MSG, concern.encode()));
+			} else if (replicas == 0) {
+				return Durability.NONE;
+			} else if (replicas == 1) {
+				return journal ? Durability.journalDurable(timeout)
+						: Durability.ACK;
+			}
+
+			return Durability.replicaDurable(journal, replicas, timeout);
+		}
+
+		if (w instanceof String) {
+			return Durability.replicaDurable(journal, (String) w, timeout);
+		}
+
+		throw new IllegalArgumentException(String.format(
+				ERROR_WRITE_CONCERN_MSG, concern.encode()));
+	}
+}
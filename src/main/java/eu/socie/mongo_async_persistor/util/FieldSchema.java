@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Declares the types of the string fields of a collection, so the
+ * {@link MongoBsonEncoder} does not have to guess from the value whether a
+ * string is an ObjectId or a date. A schema is declared as a JSON object that
+ * maps field names to types, a leading * matches any field ending on the rest
+ * of the name:
+ *
+ * <pre>
+ * {
+ * 		"*_id" : "object_id",
+ * 		"created" : "date",
+ * 		"external_id" : "string"
+ * }
+ * </pre>
+ *
+ * Exact names take precedence over suffixes, fields that are not declared are
+ * plain strings.
+ *
+ * @author Bram Wiekens
+ *
+ */
+public class FieldSchema {
+
+	public static final String TYPE_OBJECT_ID = "object_id";
+	public static final String TYPE_DATE = "date";
+	public static final String TYPE_STRING = "string";
+
+	private static final String WILDCARD = "*";
+
+	public enum FieldType {
+		OBJECT_ID, DATE, STRING
+	}
+
+	private final Map<String, FieldType> fields;
+	private final List<String> suffixes;
+	private final List<FieldType> suffixTypes;
+
+	private FieldSchema(Map<String, FieldType> fields, List<String> suffixes,
+			List<FieldType> suffixTypes) {
+		this.fields = fields;
+		this.suffixes = suffixes;
+		this.suffixTypes = suffixTypes;
+	}
+
+	/**
+	 * Create a schema from its JSON declaration
+	 *
+	 * @param declaration
+	 *            maps field names (or *suffix patterns) to a type, one of
+	 *            object_id, date or string
+	 * @return the schema
+	 * @throws IllegalArgumentException
+	 *             if a field has an unknown type
+	 */
+	public static FieldSchema fromJson(JsonObject declaration) {
+		Map<String, FieldType> fields = new HashMap<String, FieldType>();
+		List<String> suffixes = new ArrayList<String>();
+		List<FieldType> suffixTypes = new ArrayList<FieldType>();
+
+		for (String name : declaration.getFieldNames()) {
+			FieldType type = parseType(name, declaration.getString(name));
+
+			if (name.startsWith(WILDCARD)) {
+				suffixes.add(name.substring(WILDCARD.length()));
+				suffixTypes.add(type);
+			} else {
+				fields.put(name, type);
+			}
+		}
+
+		return new FieldSchema(fields, suffixes, suffixTypes);
+	}
+
+	private static FieldType parseType(String name, String type) {
+		if (TYPE_OBJECT_ID.equals(type)) {
+			return FieldType.OBJECT_ID;
+		} else if (TYPE_DATE.equals(type)) {
+			return FieldType.DATE;
+		} else if (TYPE_STRING.equals(type)) {
+			return FieldType.STRING;
+		}
+
+		throw new IllegalArgumentException(String.format(
+				"Unknown type \"%s\" for field \"%s\"", type, name));
+	}
+
+	/**
+	 * Look up the type of a field
+	 *
+	 * @param name
+	 *            is the name of the field
+	 * @return the declared type, or STRING when the field is not declared
+	 */
+	public FieldType getType(String name) {
+		FieldType type = fields.get(name);
+
+		if (type != null) {
+			return type;
+		}
+
+		for (int i = 0; i < suffixes.size(); i++) {
+			if (name.endsWith(suffixes.get(i))) {
+				return suffixTypes.get(i);
+			}
+		}
+
+		return FieldType.STRING;
+	}
+
+}
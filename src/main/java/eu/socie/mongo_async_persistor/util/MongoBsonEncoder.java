@@ -0,0 +1,297 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor.util;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.ObjectId;
+
+import eu.socie.mongo_async_persistor.util.FieldSchema.FieldType;
+
+/**
+ *
+ * This encoder converts JsonObjects directly to Mongo Documents, without
+ * formatting and parsing an intermediate string. It follows the conventions of
+ * the {@link MongoJsonEncoder}: strings in fields ending on _id that look like
+ * an ObjectId become ObjectIds, ISO date strings become dates and integral
+ * numbers are stored as NumberLong. When a {@link FieldSchema} is given for
+ * the collection the types of strings are taken from the schema instead.
+ *
+ * @author Bram Wiekens
+ *
+ */
+public class MongoBsonEncoder {
+
+	private static final String ID = "_id";
+	private static final String OPERATOR = "$";
+
+	private static final Pattern MONGO_ID = Pattern.compile("^([a-f0-9]){24}$");
+	private static final Pattern HEX_ID = Pattern.compile("[0-9a-fA-F]{24}");
+	private static final Pattern ISO_DATE = Pattern
+			.compile(MongoDateUtil.ISO_DATE_REGEX);
+	private static final Pattern BROKEN_ISO_DATE = Pattern
+			.compile(MongoDateUtil.BROKEN_ISO_DATE_REGEX);
+
+	private MongoBsonEncoder() {
+	}
+
+	/**
+	 * Convert a JsonObject to a Mongo Document, the types of strings are
+	 * guessed from their values
+	 *
+	 * @param obj
+	 *            is the JsonObject to convert
+	 * @return a Document that can be passed to the driver
+	 * @throws IllegalArgumentException
+	 *             if a null object is passed in
+	 */
+	public static Document encode(JsonObject obj) {
+		return encode(obj, null);
+	}
+
+	/**
+	 * Convert a JsonObject to a Mongo Document, the types of strings are taken
+	 * from the schema of the collection
+	 *
+	 * @param obj
+	 *            is the JsonObject to convert
+	 * @param schema
+	 *            is the schema of the collection, if null the types of strings
+	 *            are guessed from their values
+	 * @return a Document that can be passed to the driver
+	 * @throws IllegalArgumentException
+	 *             if a null object is passed in
+	 */
+	public static Document encode(JsonObject obj, FieldSchema schema) {
+		if (obj == null) {
+			throw new IllegalArgumentException(
+					"Cannot convert null object to Document");
+		}
+
+		DocumentBuilder builder = BuilderFactory.start();
+
+		encode(builder, obj, schema, null, false);
+
+		return builder.build();
+	}
+
+	/**
+	 * Operators such as $in or $gte take the type of the field they are
+	 * applied to, which is passed in as the parentType. Everything below an
+	 * operator is inOperator.
+	 */
+	private static void encode(DocumentBuilder builder, JsonObject obj,
+			FieldSchema schema, FieldType parentType, boolean inOperator) {
+		for (String key : obj.getFieldNames()) {
+			Object val = obj.getValue(key);
+
+			FieldType type = null;
+			if (schema != null) {
+				type = (parentType != null && key.startsWith(OPERATOR)) ? parentType
+						: schema.getType(key);
+			}
+
+			encodeElement(builder, key, val, schema, type, inOperator
+					|| key.startsWith(OPERATOR));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void encodeElement(DocumentBuilder builder, String key,
+			Object val, FieldSchema schema, FieldType type, boolean inOperator) {
+		if (val == null) {
+			// {"$group" : {"_id" : null}} and {"field" : null} need the null
+			builder.addNull(key);
+		} else if (val instanceof String) {
+			if (type == null) {
+				encodeString(builder, key, (String) val);
+			} else {
+				encodeString(builder, key, (String) val, type);
+			}
+		} else if (val instanceof Boolean) {
+			builder.addBoolean(key, (Boolean) val);
+		} else if (val instanceof Number) {
+			encodeNumber(builder, key, (Number) val);
+		} else if (val instanceof JsonObject) {
+			encode(builder.push(key), (JsonObject) val, schema, type,
+					inOperator);
+		} else if (val instanceof Map<?, ?>) {
+			encode(builder.push(key), new JsonObject(
+					(Map<String, Object>) val), schema, type, inOperator);
+		} else if (val instanceof JsonArray) {
+			// Empty arrays were never written by the string encoder, but
+			// {"$set" : {"tags" : []}} or {"$in" : []} needs them
+			if (inOperator || ((JsonArray) val).size() > 0) {
+				encodeArray(builder.pushArray(key), (JsonArray) val, schema,
+						type, inOperator);
+			}
+		} else if (val instanceof List<?>) {
+			if (inOperator || !((List<?>) val).isEmpty()) {
+				encodeArray(builder.pushArray(key), new JsonArray(
+						(List<Object>) val), schema, type, inOperator);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void encodeArray(ArrayBuilder builder, JsonArray array,
+			FieldSchema schema, FieldType type, boolean inOperator) {
+		for (Object val : array) {
+			if (val == null) {
+				builder.addNull();
+			} else if (val instanceof String) {
+				encodeArrayString(builder, (String) val, type);
+			} else if (val instanceof Boolean) {
+				builder.addBoolean((Boolean) val);
+			} else if (val instanceof Number) {
+				encodeArrayNumber(builder, (Number) val);
+			} else if (val instanceof JsonObject) {
+				encode(builder.push(), (JsonObject) val, schema, type,
+						inOperator);
+			} else if (val instanceof Map<?, ?>) {
+				encode(builder.push(), new JsonObject((Map<String, Object>) val),
+						schema, type, inOperator);
+			} else if (val instanceof JsonArray) {
+				encodeArray(builder.pushArray(), (JsonArray) val, schema, type,
+						inOperator);
+			} else if (val instanceof List<?>) {
+				encodeArray(builder.pushArray(), new JsonArray(
+						(List<Object>) val), schema, type, inOperator);
+			}
+		}
+	}
+
+	private static void encodeArrayString(ArrayBuilder builder, String val,
+			FieldType type) {
+		if (type == null) {
+			if (MONGO_ID.matcher(val).matches()) {
+				builder.addObjectId(new ObjectId(val));
+			} else {
+				builder.addString(val);
+			}
+		} else if (type == FieldType.OBJECT_ID && isObjectId(val)) {
+			builder.addObjectId(new ObjectId(val));
+		} else if (type == FieldType.DATE && isDate(val)) {
+			builder.addTimestamp(parseDate(val));
+		} else {
+			builder.addString(val);
+		}
+	}
+
+	/**
+	 * Encode a string to a proper bson value. Strings in fields ending on _id
+	 * that contain an ObjectId become ObjectIds and ISO formatted dates become
+	 * dates. Other strings are escaped the same way the
+	 * {@link MongoJsonEncoder} did, so stored values keep matching and
+	 * {@link MongoUtil} can unescape them again.
+	 *
+	 * @param builder
+	 *            is the builder to add the element to
+	 * @param key
+	 *            is the key of the json element
+	 * @param val
+	 *            the string value to be checked and converted
+	 */
+	private static void encodeString(DocumentBuilder builder, String key,
+			String val) {
+		if (key.endsWith(ID) && MONGO_ID.matcher(val).matches()) {
+			builder.addObjectId(key, new ObjectId(val));
+		} else if (ISO_DATE.matcher(val).matches()) {
+			builder.addTimestamp(key, MongoDateUtil.parseDate(val));
+		} else if (BROKEN_ISO_DATE.matcher(val).matches()) {
+			String value = val.replace(' ', '+');
+			builder.addTimestamp(key, MongoDateUtil.parseDate(value));
+		} else if (key.equals(ID) && HEX_ID.matcher(val).matches()) {
+			builder.addObjectId(key, new ObjectId(val));
+		} else {
+			builder.addString(key, StringEscapeUtils.escapeJava(val));
+		}
+	}
+
+	/**
+	 * Encode a string with a type declared in the schema. Values that do not
+	 * fit the declared type are stored as strings.
+	 */
+	private static void encodeString(DocumentBuilder builder, String key,
+			String val, FieldType type) {
+		if (type == FieldType.OBJECT_ID && isObjectId(val)) {
+			builder.addObjectId(key, new ObjectId(val));
+		} else if (type == FieldType.DATE && isDate(val)) {
+			builder.addTimestamp(key, parseDate(val));
+		} else {
+			builder.addString(key, StringEscapeUtils.escapeJava(val));
+		}
+	}
+
+	private static boolean isObjectId(String val) {
+		if (val.length() != 24) {
+			return false;
+		}
+
+		for (int i = 0; i < 24; i++) {
+			if (Character.digit(val.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isDate(String val) {
+		return ISO_DATE.matcher(val).matches()
+				|| BROKEN_ISO_DATE.matcher(val).matches();
+	}
+
+	private static long parseDate(String val) {
+		return MongoDateUtil.parseDate(val.replace(' ', '+'));
+	}
+
+	/**
+	 * Numbers without a fraction are stored as NumberLong, as the shell would
+	 * with NumberLong("...")
+	 */
+	private static void encodeNumber(DocumentBuilder builder, String key,
+			Number num) {
+		if (isDecimal(num)) {
+			builder.addDouble(key, num.doubleValue());
+		} else {
+			builder.addLong(key, num.longValue());
+		}
+	}
+
+	/**
+	 * Array numbers were written as plain numbers, so they become integers
+	 * when they fit and longs otherwise
+	 */
+	private static void encodeArrayNumber(ArrayBuilder builder, Number num) {
+		if (isDecimal(num)) {
+			builder.addDouble(num.doubleValue());
+		} else {
+			long value = num.longValue();
+
+			if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+				builder.addInteger((int) value);
+			} else {
+				builder.addLong(value);
+			}
+		}
+	}
+
+	private static boolean isDecimal(Number num) {
+		return (num instanceof Double) || (num instanceof Float)
+				|| (num instanceof BigDecimal);
+	}
+
+}
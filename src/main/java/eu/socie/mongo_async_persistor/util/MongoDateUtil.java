@@ -1,6 +1,8 @@
 package eu.socie.mongo_async_persistor.util;
 
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 
 public class MongoDateUtil {
@@ -12,6 +14,12 @@ public class MongoDateUtil {
 	public static final String ISO_DATE_FORMAT ="uuuu-MM-dd'T'HH:mm:ss.SSSXX";
 	public static final String ISO_DATE_FORMAT_OLD ="yyyy-MM-dd'T'HH:mm:ss.SSSZ";
 	
+	// Same format as the driver uses in ISODate('...'), UTC is written as +0000
+	public static final String TIMESTAMP_FORMAT ="uuuu-MM-dd'T'HH:mm:ss.SSSxx";
+	
+	private static final DateTimeFormatter ISO_DATE_FORMATTER = DateTimeFormatter.ofPattern(ISO_DATE_FORMAT);
+	private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern(TIMESTAMP_FORMAT);
+	
 	/**
 	 * Format a date according to the ISO Date format
 	 * @param timeDate the time to format
@@ -32,4 +40,22 @@ public class MongoDateUtil {
 
 	}
 	
+	/**
+	 * Format a Mongo timestamp in UTC, the same way the driver formats ISODate values
+	 * @param millis the number of milliseconds since the epoch
+	 * @return an ISO Date formatted string in UTC
+	 */
+	public static String formatTimestamp(long millis) {
+		return TIMESTAMP_FORMATTER.format(OffsetDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+	}
+	
+	/**
+	 * Parse an ISO Date formatted string, as accepted by ISODate() in MongoDB
+	 * @param date the ISO Date formatted string
+	 * @return the number of milliseconds since the epoch
+	 */
+	public static long parseDate(String date) {
+		return OffsetDateTime.parse(date, ISO_DATE_FORMATTER).toInstant().toEpochMilli();
+	}
+	
 }
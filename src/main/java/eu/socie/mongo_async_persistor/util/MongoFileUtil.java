@@ -13,6 +13,11 @@ public class MongoFileUtil {
 
 	private static final int FILE_NAME_HEADER = 128;
 	private static final int CONTENT_TYPE_HEADER = 50;
+
+	// An upload part starts with the upload id and the offset of the part
+	private static final int UPLOAD_ID_HEADER = 24;
+	private static final int UPLOAD_OFFSET_HEADER = 8;
+	public static final int UPLOAD_HEADER_LENGTH = UPLOAD_ID_HEADER + UPLOAD_OFFSET_HEADER;
 	
 	public static String getFilenameFromBuffer(Buffer buffer) {
 		return buffer.getString(0, FILE_NAME_HEADER);
@@ -22,11 +27,12 @@ public class MongoFileUtil {
 		return buffer.getString(FILE_NAME_HEADER, FILE_NAME_HEADER + CONTENT_TYPE_HEADER);
 	}
 	
+	/**
+	 * The contents are a slice of the buffer, they share its bytes instead of
+	 * copying them, so the contents cannot be appended to
+	 */
 	public static Buffer getFileContentsFromBuffer(Buffer buffer) {
-		// TODO this causes a copy of the buffer, can we do this smarter?		
-		int start =  FILE_NAME_HEADER + CONTENT_TYPE_HEADER;
-		int end = buffer.length();
-		return buffer.getBuffer(start, end);
+		return slice(buffer, FILE_NAME_HEADER + CONTENT_TYPE_HEADER);
 	}
 	
 	
@@ -48,4 +54,38 @@ public class MongoFileUtil {
 		return completedBuffer;
 	}
 	
+	public static String getUploadIdFromBuffer(Buffer buffer) {
+		return buffer.getString(0, UPLOAD_ID_HEADER);
+	}
+	
+	public static long getUploadOffsetFromBuffer(Buffer buffer) {
+		return buffer.getLong(UPLOAD_ID_HEADER);
+	}
+	
+	/**
+	 * @see #getFileContentsFromBuffer(Buffer)
+	 */
+	public static Buffer getUploadContentsFromBuffer(Buffer buffer) {
+		return slice(buffer, UPLOAD_HEADER_LENGTH);
+	}
+	
+	private static Buffer slice(Buffer buffer, int start) {
+		int end = buffer.length();
+		return new Buffer(buffer.getByteBuf().slice(start, end - start));
+	}
+	
+	/**
+	 * Create a part of an upload, a negative offset appends the part at the
+	 * end of the upload
+	 */
+	public static Buffer createUploadBuffer(String uploadId, long offset, Buffer partBuffer) {
+		
+		Buffer completedBuffer = new Buffer(UPLOAD_HEADER_LENGTH + partBuffer.length());
+		completedBuffer.appendString(uploadId);
+		completedBuffer.appendLong(offset);
+		completedBuffer.appendBuffer(partBuffer);
+		
+		return completedBuffer;
+	}
+	
 }
@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package eu.socie.mongo_async_persistor.util;
+
+import java.util.List;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.element.ArrayElement;
+import com.allanbank.mongodb.bson.element.BinaryElement;
+import com.allanbank.mongodb.bson.element.BooleanElement;
+import com.allanbank.mongodb.bson.element.DBPointerElement;
+import com.allanbank.mongodb.bson.element.DocumentElement;
+import com.allanbank.mongodb.bson.element.DoubleElement;
+import com.allanbank.mongodb.bson.element.IntegerElement;
+import com.allanbank.mongodb.bson.element.JavaScriptElement;
+import com.allanbank.mongodb.bson.element.JavaScriptWithScopeElement;
+import com.allanbank.mongodb.bson.element.LongElement;
+import com.allanbank.mongodb.bson.element.MongoTimestampElement;
+import com.allanbank.mongodb.bson.element.ObjectIdElement;
+import com.allanbank.mongodb.bson.element.RegularExpressionElement;
+import com.allanbank.mongodb.bson.element.StringElement;
+import com.allanbank.mongodb.bson.element.SymbolElement;
+import com.allanbank.mongodb.bson.element.TimestampElement;
+
+/**
+ * Writes Mongo Documents straight to JSON text, without building a JsonObject
+ * for every document first. The JSON produced is the same as encoding the
+ * result of {@link MongoUtil#convertBsonToJson(Document)}.
+ *
+ * @author Bram Wiekens
+ *
+ */
+public class MongoJsonWriter {
+
+	private static final int INITIAL_CAPACITY = 8192;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private MongoJsonWriter() {
+	}
+
+	/**
+	 * Write all documents as one JSON array
+	 *
+	 * @param docs
+	 *            are the documents to write, for instance a MongoIterator
+	 * @return the JSON array as a string
+	 */
+	public static String writeArray(Iterable<Document> docs) {
+		StringBuilder json = new StringBuilder(INITIAL_CAPACITY);
+
+		json.append('[');
+
+		boolean first = true;
+		for (Document doc : docs) {
+			if (!first) {
+				json.append(',');
+			}
+			writeDocument(json, doc);
+			first = false;
+		}
+
+		json.append(']');
+
+		return json.toString();
+	}
+
+	/**
+	 * Write a single document as a JSON object
+	 *
+	 * @param doc
+	 *            is the document to write
+	 * @return the JSON object as a string
+	 */
+	public static String write(Document doc) {
+		StringBuilder json = new StringBuilder(256);
+
+		writeDocument(json, doc);
+
+		return json.toString();
+	}
+
+	/**
+	 * Append a document as a JSON object to json
+	 *
+	 * @param json
+	 *            is the target to append to
+	 * @param doc
+	 *            is the document to write
+	 */
+	public static void writeDocument(StringBuilder json, Document doc) {
+		writeElements(json, doc.getElements(), true);
+	}
+
+	private static void writeElements(StringBuilder json,
+			List<Element> elements, boolean named) {
+		json.append(named ? '{' : '[');
+
+		boolean first = true;
+		for (Element element : elements) {
+			if (!first) {
+				json.append(',');
+			}
+			if (named) {
+				writeString(json, element.getName());
+				json.append(':');
+			}
+
+			writeValue(json, element);
+			first = false;
+		}
+
+		json.append(named ? '}' : ']');
+	}
+
+	/**
+	 * Write the value of an element, the mapping per type is described in
+	 * {@link MongoUtil#convertElement(Element)}
+	 */
+	private static void writeValue(StringBuilder json, Element element) {
+		switch (element.getType()) {
+		case STRING:
+			String value = ((StringElement) element).getValue();
+			writeString(json, MongoUtil.unescape(value));
+			break;
+		case SYMBOL:
+			writeString(json, ((SymbolElement) element).getSymbol());
+			break;
+		case OBJECT_ID:
+			writeString(json, ((ObjectIdElement) element).getId().toHexString());
+			break;
+		case BOOLEAN:
+			json.append(((BooleanElement) element).getValue());
+			break;
+		case INTEGER:
+			json.append(((IntegerElement) element).getValue());
+			break;
+		case LONG:
+			json.append(((LongElement) element).getValue());
+			break;
+		case DOUBLE:
+			json.append(((DoubleElement) element).getValue());
+			break;
+		case UTC_TIMESTAMP:
+			long time = ((TimestampElement) element).getTime();
+			writeString(json, MongoDateUtil.formatTimestamp(time));
+			break;
+		case MONGO_TIMESTAMP:
+			json.append(((MongoTimestampElement) element).getTime());
+			break;
+		case DOCUMENT:
+			writeElements(json, ((DocumentElement) element).getElements(), true);
+			break;
+		case ARRAY:
+			writeElements(json, ((ArrayElement) element).getEntries(), false);
+			break;
+		case BINARY:
+			byte[] data = ((BinaryElement) element).getValue();
+			writeString(json, MongoUtil.encodeBinary(data));
+			break;
+		case REGEX:
+			RegularExpressionElement regex = (RegularExpressionElement) element;
+			json.append('{');
+			writeField(json, MongoUtil.REGEX_FIELD, regex.getPattern());
+			json.append(',');
+			writeField(json, MongoUtil.OPTIONS_FIELD,
+					MongoUtil.regexOptions(regex.getOptions()));
+			json.append('}');
+			break;
+		case JAVA_SCRIPT:
+			writeString(json, ((JavaScriptElement) element).getJavaScript());
+			break;
+		case JAVA_SCRIPT_WITH_SCOPE:
+			JavaScriptWithScopeElement code = (JavaScriptWithScopeElement) element;
+			json.append('{');
+			writeField(json, MongoUtil.CODE_FIELD, code.getJavaScript());
+			json.append(',');
+			writeString(json, MongoUtil.SCOPE_FIELD);
+			json.append(':');
+			writeDocument(json, code.getScope());
+			json.append('}');
+			break;
+		case DB_POINTER:
+			DBPointerElement pointer = (DBPointerElement) element;
+			json.append('{');
+			writeField(json, MongoUtil.REF_FIELD, pointer.getCollectionName());
+			json.append(',');
+			writeField(json, MongoUtil.ID_FIELD, pointer.getId().toHexString());
+			json.append('}');
+			break;
+		case MIN_KEY:
+			json.append('{');
+			writeString(json, MongoUtil.MIN_KEY_FIELD);
+			json.append(":1}");
+			break;
+		case MAX_KEY:
+			json.append('{');
+			writeString(json, MongoUtil.MAX_KEY_FIELD);
+			json.append(":1}");
+			break;
+		case NULL:
+		default:
+			json.append("null");
+		}
+	}
+
+	private static void writeField(StringBuilder json, String name,
+			String value) {
+		writeString(json, name);
+		json.append(':');
+		writeString(json, value);
+	}
+
+	private static void writeString(StringBuilder json, String value) {
+		json.append('"');
+
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			case '\b':
+				json.append("\\b");
+				break;
+			case '\f':
+				json.append("\\f");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+				} else {
+					json.append(c);
+				}
+			}
+		}
+
+		json.append('"');
+	}
+
+}
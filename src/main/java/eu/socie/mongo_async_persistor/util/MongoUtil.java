@@ -16,7 +16,7 @@
 
 package eu.socie.mongo_async_persistor.util;
 
-import java.util.List;
+import java.util.Base64;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.vertx.java.core.json.JsonArray;
@@ -25,13 +25,20 @@ import org.vertx.java.core.json.JsonObject;
 import com.allanbank.mongodb.bson.Document;
 import com.allanbank.mongodb.bson.Element;
 import com.allanbank.mongodb.bson.element.ArrayElement;
+import com.allanbank.mongodb.bson.element.BinaryElement;
 import com.allanbank.mongodb.bson.element.BooleanElement;
+import com.allanbank.mongodb.bson.element.DBPointerElement;
 import com.allanbank.mongodb.bson.element.DocumentElement;
 import com.allanbank.mongodb.bson.element.DoubleElement;
 import com.allanbank.mongodb.bson.element.IntegerElement;
+import com.allanbank.mongodb.bson.element.JavaScriptElement;
+import com.allanbank.mongodb.bson.element.JavaScriptWithScopeElement;
 import com.allanbank.mongodb.bson.element.LongElement;
+import com.allanbank.mongodb.bson.element.MongoTimestampElement;
 import com.allanbank.mongodb.bson.element.ObjectIdElement;
+import com.allanbank.mongodb.bson.element.RegularExpressionElement;
 import com.allanbank.mongodb.bson.element.StringElement;
+import com.allanbank.mongodb.bson.element.SymbolElement;
 import com.allanbank.mongodb.bson.element.TimestampElement;
 import com.allanbank.mongodb.bson.json.Json;
 
@@ -45,7 +52,15 @@ import com.allanbank.mongodb.bson.json.Json;
 public class MongoUtil {
 
 	//private final static String ISO_DATE = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
-	
+
+	static final String REGEX_FIELD = "$regex";
+	static final String OPTIONS_FIELD = "$options";
+	static final String CODE_FIELD = "$code";
+	static final String SCOPE_FIELD = "$scope";
+	static final String REF_FIELD = "$ref";
+	static final String ID_FIELD = "$id";
+	static final String MIN_KEY_FIELD = "$minKey";
+	static final String MAX_KEY_FIELD = "$maxKey";
 	
 	/**
 	 * Converts a JsonObject to a MongoDB Document
@@ -84,88 +99,151 @@ public class MongoUtil {
 	}
 
 	private static JsonObject serialize(Document document) {
-		List<Element> elements = document.getElements();
 		JsonObject obj = new JsonObject();
 
-		for (Element element : elements) {
-			
-			String name = element.getName();
-		
-			if (element instanceof StringElement) {
-				String e = ((StringElement) element).getValue();
-				e = StringEscapeUtils.unescapeJava(e);
-				obj.putString(name, e);
-			}
-			if (element instanceof ObjectIdElement) {
-				String id = ((ObjectIdElement) element).getId().toHexString();
-				obj.putString(name, id);
-			}
-			if (element instanceof BooleanElement) {
-				obj.putBoolean(name, ((BooleanElement) element).getValue());
-			}
-			if (element instanceof LongElement) {
-				obj.putNumber(name, ((LongElement) element).getValue());
-			}
-			if (element instanceof IntegerElement) {
-				obj.putNumber(name, ((IntegerElement) element).getValue());
-			}
-			if (element instanceof DoubleElement) {
-				obj.putNumber(name, ((DoubleElement) element).getValue());
-			}
-			if (element instanceof DocumentElement) {
-				obj.putObject(name,
-						serialize(((DocumentElement) element).getDocument()));
-			}
-			if (element instanceof TimestampElement){
-				String val = ((TimestampElement) element).getValueAsString();
-				int firstQuote = val.indexOf('\'');
-				int lastQuote = val.indexOf('\'', firstQuote+1);
-				
-				obj.putString(name, val.substring(firstQuote+1, lastQuote));
-			}
+		for (Element element : document.getElements()) {
+			Object value = convertElement(element);
 
-			if (element instanceof ArrayElement) {
-				JsonArray arr = serialize((ArrayElement) element);
-				obj.putArray(name, arr);
+			if (value == null) {
+				obj.putObject(element.getName(), null);
+			} else {
+				obj.putValue(element.getName(), value);
 			}
-
 		}
 		return obj;
 	}
 
 	private static JsonArray serialize(ArrayElement array) {
-
 		JsonArray arr = new JsonArray();
 
-		List<Element> arrElements = array.getEntries();
-		for (Element element : arrElements) {
-			if (element instanceof ObjectIdElement) {
-				String id = ((ObjectIdElement) element).getId().toHexString();
-				arr.add(id);
-			}
-			if (element instanceof StringElement) {
-				String e = ((StringElement) element).getValue();
-				e = StringEscapeUtils.unescapeJava(e);
-				arr.add(e);
-			}
-			if (element instanceof IntegerElement) {
-				arr.add(((IntegerElement) element).getValue());
-			}
-			if (element instanceof DoubleElement) {
-				arr.add(((DoubleElement) element).getValue());
-			}
-			if (element instanceof DocumentElement) {
-				Document doc = (((DocumentElement) element).getDocument());
-				arr.add(serialize(doc));
-			}
-			if (element instanceof ArrayElement) {
-				arr.addArray(serialize((ArrayElement) element));
-			}
+		for (Element element : array.getEntries()) {
+			arr.add(convertElement(element));
 		}
 
 		return arr;
 	}
 
+	/**
+	 * Convert a single element to its JSON value. Every BSON type has a
+	 * mapping:
+	 * <ul>
+	 * <li>string, symbol and JavaScript become strings</li>
+	 * <li>ObjectIds become their hex string</li>
+	 * <li>int, long and double become numbers</li>
+	 * <li>dates become ISO date strings in UTC</li>
+	 * <li>Mongo (replication) timestamps become their 64 bit number</li>
+	 * <li>binary data becomes a Base64 string</li>
+	 * <li>regular expressions become {"$regex" : ..., "$options" : ...}</li>
+	 * <li>JavaScript with scope becomes {"$code" : ..., "$scope" : {...}}</li>
+	 * <li>DB pointers become {"$ref" : ..., "$id" : ...}</li>
+	 * <li>min and max keys become {"$minKey" : 1} and {"$maxKey" : 1}</li>
+	 * <li>null stays null</li>
+	 * </ul>
+	 * 
+	 * @param element
+	 *            is the element to convert
+	 * @return a String, Number, Boolean, JsonObject, JsonArray or null
+	 */
+	static Object convertElement(Element element) {
+		switch (element.getType()) {
+		case STRING:
+			return unescape(((StringElement) element).getValue());
+		case SYMBOL:
+			return ((SymbolElement) element).getSymbol();
+		case OBJECT_ID:
+			return ((ObjectIdElement) element).getId().toHexString();
+		case BOOLEAN:
+			return ((BooleanElement) element).getValue();
+		case INTEGER:
+			return ((IntegerElement) element).getValue();
+		case LONG:
+			return ((LongElement) element).getValue();
+		case DOUBLE:
+			return ((DoubleElement) element).getValue();
+		case UTC_TIMESTAMP:
+			return MongoDateUtil.formatTimestamp(((TimestampElement) element)
+					.getTime());
+		case MONGO_TIMESTAMP:
+			return ((MongoTimestampElement) element).getTime();
+		case DOCUMENT:
+			return serialize(((DocumentElement) element).getDocument());
+		case ARRAY:
+			return serialize((ArrayElement) element);
+		case BINARY:
+			return encodeBinary(((BinaryElement) element).getValue());
+		case REGEX:
+			RegularExpressionElement regex = (RegularExpressionElement) element;
+			return new JsonObject().putString(REGEX_FIELD, regex.getPattern())
+					.putString(OPTIONS_FIELD,
+							regexOptions(regex.getOptions()));
+		case JAVA_SCRIPT:
+			return ((JavaScriptElement) element).getJavaScript();
+		case JAVA_SCRIPT_WITH_SCOPE:
+			JavaScriptWithScopeElement code = (JavaScriptWithScopeElement) element;
+			return new JsonObject().putString(CODE_FIELD, code.getJavaScript())
+					.putObject(SCOPE_FIELD, serialize(code.getScope()));
+		case DB_POINTER:
+			DBPointerElement pointer = (DBPointerElement) element;
+			return new JsonObject().putString(REF_FIELD,
+					pointer.getCollectionName()).putString(ID_FIELD,
+					pointer.getId().toHexString());
+		case MIN_KEY:
+			return new JsonObject().putNumber(MIN_KEY_FIELD, 1);
+		case MAX_KEY:
+			return new JsonObject().putNumber(MAX_KEY_FIELD, 1);
+		case NULL:
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Strings are stored Java escaped by the encoders, only strings that
+	 * contain an escape need the (expensive) unescape
+	 * 
+	 * @param value
+	 *            is the stored string
+	 * @return the unescaped string
+	 */
+	public static String unescape(String value) {
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+		return StringEscapeUtils.unescapeJava(value);
+	}
+
+	static String encodeBinary(byte[] data) {
+		return Base64.getEncoder().encodeToString(data);
+	}
+
+	/**
+	 * Convert the regular expression option flags to the shell notation
+	 */
+	static String regexOptions(int options) {
+		StringBuilder result = new StringBuilder(6);
+
+		if ((options & RegularExpressionElement.CASE_INSENSITIVE) != 0) {
+			result.append('i');
+		}
+		if ((options & RegularExpressionElement.LOCALE_DEPENDENT) != 0) {
+			result.append('l');
+		}
+		if ((options & RegularExpressionElement.MULTILINE) != 0) {
+			result.append('m');
+		}
+		if ((options & RegularExpressionElement.DOT_ALL) != 0) {
+			result.append('s');
+		}
+		if ((options & RegularExpressionElement.UNICODE) != 0) {
+			result.append('u');
+		}
+		if ((options & RegularExpressionElement.VERBOSE) != 0) {
+			result.append('x');
+		}
+
+		return result.toString();
+	}
+
 	/**
 	 * Converts a Bson Document to its Bson form and then encapsulates it in a
 	 * JsonObject
@@ -0,0 +1,126 @@
+package eu.socie.mongo_async_persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.ObjectId;
+
+import eu.socie.mongo_async_persistor.KeysetPage;
+
+/*
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * @author Bram Wiekens</a>
+ */
+public class KeysetPageTest {
+
+  private static final ObjectId ID = new ObjectId("54f5a3e7e4b0d1c5a9e7b1a2");
+
+  private static final Document EMPTY = BuilderFactory.start().build();
+
+  private Document last(Integer a) {
+    DocumentBuilder last = BuilderFactory.start().addObjectId("_id", ID);
+    if (a != null) {
+      last.addInteger("a", a);
+    }
+    return last.addString("name", "x").build();
+  }
+
+  private Document next(Document last, int direction) {
+    JsonObject sort = KeysetPage.uniqueSort(new JsonObject().putNumber("a",
+        direction));
+
+    return KeysetPage.createQuery(EMPTY, sort,
+        KeysetPage.createToken(last, sort));
+  }
+
+  @Test
+  public void testUniqueSort() {
+    assertEquals(new JsonObject().putNumber("_id", 1),
+        KeysetPage.uniqueSort(null));
+    assertEquals(new JsonObject().putNumber("a", -1).putNumber("_id", 1),
+        KeysetPage.uniqueSort(new JsonObject().putNumber("a", -1)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNestedSort() {
+    KeysetPage.uniqueSort(new JsonObject().putNumber("a.b", 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidToken() {
+    KeysetPage.createQuery(EMPTY, KeysetPage.uniqueSort(null), "not a token");
+  }
+
+  @Test
+  public void testAscending() {
+    DocumentBuilder expected = BuilderFactory.start();
+    ArrayBuilder or = expected.pushArray("$or");
+    or.push().push("a").addInteger("$gt", 5);
+    or.push().addInteger("a", 5).push("_id").addObjectId("$gt", ID);
+
+    assertEquals(expected.build(), next(last(5), 1));
+  }
+
+  @Test
+  public void testDescending() {
+    DocumentBuilder expected = BuilderFactory.start();
+    ArrayBuilder or = expected.pushArray("$or");
+    or.push().push("a").addInteger("$lt", 5);
+    or.push().addNull("a");
+    or.push().addInteger("a", 5).push("_id").addObjectId("$gt", ID);
+
+    assertEquals(expected.build(), next(last(5), -1));
+  }
+
+  @Test
+  public void testNullAscending() {
+    DocumentBuilder expected = BuilderFactory.start();
+    ArrayBuilder or = expected.pushArray("$or");
+    or.push().push("a").addNull("$ne");
+    or.push().addNull("a").push("_id").addObjectId("$gt", ID);
+
+    assertEquals(expected.build(), next(last(null), 1));
+  }
+
+  @Test
+  public void testNullDescending() {
+    DocumentBuilder expected = BuilderFactory.start();
+    expected.pushArray("$or").push().addNull("a").push("_id")
+        .addObjectId("$gt", ID);
+
+    assertEquals(expected.build(), next(last(null), -1));
+  }
+
+  @Test
+  public void testWithQuery() {
+    Document query = BuilderFactory.start().addString("name", "x").build();
+    JsonObject sort = KeysetPage.uniqueSort(null);
+
+    DocumentBuilder expected = BuilderFactory.start();
+    ArrayBuilder and = expected.pushArray("$and");
+    and.addDocument(query);
+    and.push().pushArray("$or").push().push("_id").addObjectId("$gt", ID);
+
+    assertEquals(expected.build(), KeysetPage.createQuery(query, sort,
+        KeysetPage.createToken(last(5), sort)));
+  }
+}
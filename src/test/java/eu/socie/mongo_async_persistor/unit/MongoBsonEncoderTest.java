@@ -0,0 +1,164 @@
+package eu.socie.mongo_async_persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.element.ArrayElement;
+import com.allanbank.mongodb.bson.element.DocumentElement;
+import com.allanbank.mongodb.bson.element.IntegerElement;
+import com.allanbank.mongodb.bson.element.LongElement;
+import com.allanbank.mongodb.bson.element.NullElement;
+import com.allanbank.mongodb.bson.element.ObjectIdElement;
+import com.allanbank.mongodb.bson.element.StringElement;
+import com.allanbank.mongodb.bson.element.TimestampElement;
+
+import eu.socie.mongo_async_persistor.util.FieldSchema;
+import eu.socie.mongo_async_persistor.util.MongoBsonEncoder;
+import eu.socie.mongo_async_persistor.util.MongoDateUtil;
+
+/*
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * @author Bram Wiekens</a>
+ */
+public class MongoBsonEncoderTest {
+
+  private static final String ID = "54f5a3e7e4b0d1c5a9e7b1a2";
+
+  @Test
+  public void testIdsAndDates() {
+    JsonObject json = new JsonObject();
+    json.putString("_id", ID);
+    json.putString("owner_id", ID);
+    json.putString("created", "2015-03-01T10:15:30.000+0100");
+    json.putString("name", ID);
+
+    Document doc = MongoBsonEncoder.encode(json);
+
+    assertTrue(doc.get("_id") instanceof ObjectIdElement);
+    assertTrue(doc.get("owner_id") instanceof ObjectIdElement);
+    assertTrue(doc.get("name") instanceof StringElement);
+
+    TimestampElement created = (TimestampElement) doc.get("created");
+    assertEquals(MongoDateUtil.parseDate("2015-03-01T10:15:30.000+0100"),
+        created.getTime());
+  }
+
+  @Test
+  public void testNumbers() {
+    JsonObject json = new JsonObject();
+    json.putNumber("count", 3);
+    json.putArray("values", new JsonArray().addNumber(1).addNumber(2));
+
+    Document doc = MongoBsonEncoder.encode(json);
+
+    assertTrue(doc.get("count") instanceof LongElement);
+
+    ArrayElement values = (ArrayElement) doc.get("values");
+    assertEquals(2, values.getEntries().size());
+    assertTrue(values.getEntries().get(0) instanceof IntegerElement);
+  }
+
+  @Test
+  public void testNestedAndEmpty() {
+    JsonObject json = new JsonObject();
+    json.putObject("sub", new JsonObject().putString("text", "line\nbreak"));
+    json.putArray("empty", new JsonArray());
+
+    Document doc = MongoBsonEncoder.encode(json);
+
+    Document sub = ((DocumentElement) doc.get("sub")).getDocument();
+    assertEquals("line\\nbreak", ((StringElement) sub.get("text")).getValue());
+    assertNull(doc.get("empty"));
+  }
+
+  @Test
+  public void testEmptyArrayInOperator() {
+    JsonObject json = new JsonObject();
+    json.putObject("$set", new JsonObject().putArray("tags", new JsonArray()));
+
+    Document doc = MongoBsonEncoder.encode(json);
+
+    Document set = ((DocumentElement) doc.get("$set")).getDocument();
+    assertTrue(set.get("tags") instanceof ArrayElement);
+    assertTrue(((ArrayElement) set.get("tags")).getEntries().isEmpty());
+  }
+
+  @Test
+  public void testNullInQuery() {
+    JsonObject json = new JsonObject();
+    json.putString("deleted", null);
+
+    Document doc = MongoBsonEncoder.encode(json);
+
+    assertTrue(doc.get("deleted") instanceof NullElement);
+  }
+
+  @Test
+  public void testNullInGroup() {
+    JsonObject json = new JsonObject();
+    json.putObject("$group", new JsonObject().putString("_id", null)
+        .putObject("total", new JsonObject().putString("$sum", "$amount")));
+
+    Document doc = MongoBsonEncoder.encode(json);
+
+    Document group = ((DocumentElement) doc.get("$group")).getDocument();
+    assertTrue(group.get("_id") instanceof NullElement);
+    assertTrue(group.get("total") instanceof DocumentElement);
+  }
+
+  @Test
+  public void testNullInArray() {
+    JsonObject json = new JsonObject();
+    json.putArray("values", new JsonArray().addNumber(1).addString(null));
+
+    Document doc = MongoBsonEncoder.encode(json);
+
+    ArrayElement values = (ArrayElement) doc.get("values");
+    assertEquals(2, values.getEntries().size());
+    assertTrue(values.getEntries().get(1) instanceof NullElement);
+  }
+
+  @Test
+  public void testSchema() {
+    FieldSchema schema = FieldSchema.fromJson(new JsonObject()
+        .putString("*_id", FieldSchema.TYPE_OBJECT_ID)
+        .putString("code", FieldSchema.TYPE_STRING));
+
+    JsonObject json = new JsonObject();
+    json.putString("owner_id", ID);
+    json.putString("code", ID);
+    json.putString("created", "2015-03-01T10:15:30.000+0100");
+    json.putObject("parent_id", new JsonObject().putArray("$in",
+        new JsonArray().addString(ID)));
+
+    Document doc = MongoBsonEncoder.encode(json, schema);
+
+    assertTrue(doc.get("owner_id") instanceof ObjectIdElement);
+    assertTrue(doc.get("code") instanceof StringElement);
+    // Undeclared fields are not sniffed
+    assertTrue(doc.get("created") instanceof StringElement);
+
+    Document in = ((DocumentElement) doc.get("parent_id")).getDocument();
+    ArrayElement ids = (ArrayElement) in.get("$in");
+    assertTrue(ids.getEntries().get(0) instanceof ObjectIdElement);
+  }
+}
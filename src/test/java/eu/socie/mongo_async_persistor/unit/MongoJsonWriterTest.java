@@ -0,0 +1,93 @@
+package eu.socie.mongo_async_persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.ObjectId;
+
+import eu.socie.mongo_async_persistor.util.MongoJsonWriter;
+
+/*
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * @author Bram Wiekens</a>
+ */
+public class MongoJsonWriterTest {
+
+  private static final String ID = "54f5a3e7e4b0d1c5a9e7b1a2";
+
+  @Test
+  public void testIdsAndNumbers() {
+    DocumentBuilder builder = BuilderFactory.start();
+    builder.addObjectId("_id", new ObjectId(ID));
+    builder.addLong("count", 5000000000L);
+    builder.addInteger("small", 3);
+    builder.addBoolean("done", true);
+
+    assertEquals("{\"_id\":\"" + ID + "\",\"count\":5000000000,"
+        + "\"small\":3,\"done\":true}", MongoJsonWriter.write(builder.build()));
+  }
+
+  @Test
+  public void testDatesAndBinary() {
+    DocumentBuilder builder = BuilderFactory.start();
+    builder.addTimestamp("created", 1425201330000L);
+    builder.addBinary("data", new byte[] { 1, 2, 3 });
+    builder.addNull("deleted");
+
+    assertEquals("{\"created\":\"2015-03-01T09:15:30.000+0000\","
+        + "\"data\":\"AQID\",\"deleted\":null}",
+        MongoJsonWriter.write(builder.build()));
+  }
+
+  @Test
+  public void testNestedAndArrays() {
+    DocumentBuilder builder = BuilderFactory.start();
+    builder.push("sub").addString("name", "a").pushArray("tags")
+        .addString("x").addLong(2);
+    builder.pushArray("values").addInteger(1).push().addInteger("n", 2);
+
+    assertEquals("{\"sub\":{\"name\":\"a\",\"tags\":[\"x\",2]},"
+        + "\"values\":[1,{\"n\":2}]}", MongoJsonWriter.write(builder.build()));
+  }
+
+  @Test
+  public void testEscapedStrings() {
+    DocumentBuilder builder = BuilderFactory.start();
+    // Stored Java escaped by the encoders
+    builder.addString("stored", "line\\nbreak");
+    builder.addString("quote", "say \"hi\"\t\u0001");
+
+    assertEquals("{\"stored\":\"line\\nbreak\","
+        + "\"quote\":\"say \\\"hi\\\"\\t\\u0001\"}",
+        MongoJsonWriter.write(builder.build()));
+  }
+
+  @Test
+  public void testArrayOfDocuments() {
+    Document first = BuilderFactory.start().addInteger("a", 1).build();
+    Document second = BuilderFactory.start().addInteger("a", 2).build();
+
+    assertEquals("[{\"a\":1},{\"a\":2}]",
+        MongoJsonWriter.writeArray(Arrays.asList(first, second)));
+    assertEquals("[]", MongoJsonWriter.writeArray(Arrays.<Document> asList()));
+  }
+}
@@ -0,0 +1,88 @@
+package eu.socie.mongo_async_persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.ObjectId;
+
+import eu.socie.mongo_async_persistor.util.MongoUtil;
+
+/*
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * @author Bram Wiekens</a>
+ */
+public class MongoUtilTest {
+
+  private static final String ID = "54f5a3e7e4b0d1c5a9e7b1a2";
+
+  @Test
+  public void testScalars() {
+    DocumentBuilder builder = BuilderFactory.start();
+    builder.addObjectId("_id", new ObjectId(ID));
+    builder.addTimestamp("created", 1425201330000L);
+    builder.addLong("count", 5000000000L);
+    builder.addBinary("data", new byte[] { 1, 2, 3 });
+    builder.addNull("deleted");
+
+    JsonObject json = MongoUtil.convertBsonToJson(builder.build());
+
+    assertEquals(ID, json.getString("_id"));
+    assertEquals("2015-03-01T09:15:30.000+0000", json.getString("created"));
+    assertEquals(5000000000L, json.getLong("count").longValue());
+    assertEquals("AQID", json.getString("data"));
+    assertTrue(json.containsField("deleted"));
+    assertNull(json.getValue("deleted"));
+  }
+
+  @Test
+  public void testNestedAndArrays() {
+    DocumentBuilder builder = BuilderFactory.start();
+    builder.push("sub").addString("name", "a");
+    builder.pushArray("values").addInteger(1).addLong(5000000000L)
+        .addTimestamp(1425201330000L).push().addInteger("n", 2);
+
+    JsonObject json = MongoUtil.convertBsonToJson(builder.build());
+
+    assertEquals("a", json.getObject("sub").getString("name"));
+
+    JsonArray values = json.getArray("values");
+    assertEquals(4, values.size());
+    assertEquals(1, ((Number) values.get(0)).intValue());
+    assertEquals(5000000000L, ((Number) values.get(1)).longValue());
+    assertEquals("2015-03-01T09:15:30.000+0000", values.get(2));
+    assertEquals(2, ((JsonObject) values.get(3)).getInteger("n").intValue());
+  }
+
+  @Test
+  public void testEscapedStrings() {
+    DocumentBuilder builder = BuilderFactory.start();
+    // Stored Java escaped by the encoders
+    builder.addString("stored", "line\\nbreak");
+    builder.addString("plain", "say \"hi\"");
+
+    JsonObject json = MongoUtil.convertBsonToJson(builder.build());
+
+    assertEquals("line\nbreak", json.getString("stored"));
+    assertEquals("say \"hi\"", json.getString("plain"));
+  }
+}
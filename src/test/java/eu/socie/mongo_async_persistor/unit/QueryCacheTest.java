@@ -0,0 +1,70 @@
+package eu.socie.mongo_async_persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import eu.socie.mongo_async_persistor.QueryCache;
+
+/*
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * @author Bram Wiekens</a>
+ */
+public class QueryCacheTest {
+
+  private JsonObject request(String name) {
+    return new JsonObject().putString("collection", "users").putObject(
+        "document", new JsonObject().putString("name", name));
+  }
+
+  private String key(QueryCache cache, String name) {
+    return cache.key(QueryCache.requestKey("find", "users", request(name), "limit"),
+        "users");
+  }
+
+  @Test
+  public void testHitAndInvalidate() {
+    QueryCache cache = new QueryCache(new JsonObject().putNumber("ttl", 60000));
+
+    String key = key(cache, "a");
+    cache.put(key, "users", "result");
+
+    assertEquals("result", cache.get(key(cache, "a")));
+
+    cache.invalidate("users");
+
+    assertNull(cache.get(key(cache, "a")));
+    assertEquals(1L, cache.stats().getLong("hits").longValue());
+    assertEquals(1L, cache.stats().getLong("misses").longValue());
+  }
+
+  @Test
+  public void testEviction() {
+    QueryCache cache = new QueryCache(new JsonObject().putNumber("ttl", 60000)
+        .putNumber("max_entries", 1));
+
+    String first = key(cache, "a");
+    String second = key(cache, "b");
+
+    cache.put(first, "users", "a");
+    cache.put(second, "users", "b");
+
+    assertNull(cache.get(first));
+    assertEquals("b", cache.get(second));
+  }
+}
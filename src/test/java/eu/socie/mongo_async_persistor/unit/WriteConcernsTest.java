@@ -0,0 +1,69 @@
+package eu.socie.mongo_async_persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import com.allanbank.mongodb.Durability;
+
+import eu.socie.mongo_async_persistor.WriteConcerns;
+
+/*
+ * Copyright 2015 Socie
+ *
+ * Socie licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * @author Bram Wiekens</a>
+ */
+public class WriteConcernsTest {
+
+  @Test
+  public void testParse() {
+    assertNull(WriteConcerns.parse(null));
+    assertEquals(Durability.NONE, WriteConcerns.parse("unacknowledged"));
+    assertEquals(Durability.ACK, WriteConcerns.parse("acknowledged"));
+    assertEquals(Durability.NONE,
+        WriteConcerns.parse(new JsonObject().putNumber("w", 0)));
+    assertEquals(Durability.replicaDurable(true, "majority", 5000),
+        WriteConcerns.parse(new JsonObject().putString("w", "majority")
+            .putBoolean("j", true).putNumber("wtimeout", 5000)));
+    // A wtimeout only applies to replicated and journaled writes
+    assertEquals(Durability.ACK, WriteConcerns.parse(new JsonObject()
+        .putNumber("w", 1).putNumber("wtimeout", 5000)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknown() {
+    WriteConcerns.parse("sometimes");
+  }
+
+  @Test
+  public void testSelection() {
+    JsonObject config = new JsonObject();
+    config.putString(WriteConcerns.CONFIG_WRITE_CONCERN, "acknowledged");
+    config.putObject(WriteConcerns.CONFIG_COLLECTION_WRITE_CONCERNS,
+        new JsonObject().putString("telemetry", "unacknowledged"));
+
+    WriteConcerns concerns = new WriteConcerns(config);
+
+    assertEquals(Durability.ACK, concerns.get("billing"));
+    assertFalse(WriteConcerns.isAcknowledged(concerns.get("telemetry",
+        new JsonObject())));
+    assertTrue(WriteConcerns.isAcknowledged(concerns.get("telemetry",
+        new JsonObject().putString("write_concern", "journaled"))));
+  }
+}